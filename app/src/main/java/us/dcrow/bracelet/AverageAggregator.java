@@ -0,0 +1,31 @@
+package us.dcrow.bracelet;
+
+/**
+ * Shows the mean breathing position of every sensor on all the Bracelets, e.g. for a group breathing together.
+ * Sensors without a hue yet are left out.
+ */
+public class AverageAggregator implements SensorAggregator {
+
+    @Override
+    public int getGroupCount(int sensorCount) {
+        return 1;
+    }
+
+    @Override
+    public int aggregate(int[] hues, boolean[] updated, int sensorCount, int group) {
+        boolean changed = false;
+        int sum = 0;
+        int count = 0;
+        for (int i = 0; i < sensorCount; i++) {
+            changed |= updated[i];
+            if (hues[i] != BreathingPipeline.NO_HUE) {
+                sum += hues[i];
+                count++;
+            }
+        }
+        if (!changed) {
+            return UNCHANGED;
+        }
+        return count == 0 ? BreathingPipeline.NO_HUE : (sum + count / 2) / count;
+    }
+}
@@ -0,0 +1,82 @@
+package us.dcrow.bracelet;
+
+/**
+ * Second order IIR low-pass filter (RBJ cookbook biquad, transposed direct form II).
+ * Rolls off at 12 dB/octave above the cutoff, with far less lag than a boxcar average
+ * that removes the same amount of noise.
+ */
+public class BiquadLowPassFilter implements SignalFilter {
+
+    /**
+     * Butterworth quality factor, flattest pass band
+     */
+    public static final double BUTTERWORTH_Q = 0.7071067811865476;
+
+    /**
+     * Normalized coefficients (a0 = 1)
+     */
+    private final double b0, b1, b2, a1, a2;
+
+    /**
+     * Filter state
+     */
+    private double z1, z2;
+
+    /**
+     * Tells if the state was seeded with a first sample
+     */
+    private boolean primed;
+
+    /**
+     * @param cutoffHz   cutoff frequency, must be below half the sample rate
+     * @param sampleRate rate at which samples are fed to the filter, in Hz
+     * @param q          quality factor, use BUTTERWORTH_Q if unsure
+     */
+    public BiquadLowPassFilter(double cutoffHz, double sampleRate, double q) {
+        if (!(cutoffHz > 0 && cutoffHz < sampleRate / 2)) {
+            throw new IllegalArgumentException("Cutoff must be between 0 and the Nyquist frequency: " + cutoffHz);
+        }
+        if (!(q > 0)) {
+            throw new IllegalArgumentException("Quality factor must be positive: " + q);
+        }
+
+        double w0 = 2 * Math.PI * cutoffHz / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+        double a0 = 1 + alpha;
+
+        b0 = (1 - cos) / 2 / a0;
+        b1 = (1 - cos) / a0;
+        b2 = b0;
+        a1 = -2 * cos / a0;
+        a2 = (1 - alpha) / a0;
+    }
+
+    public BiquadLowPassFilter(double cutoffHz, double sampleRate) {
+        this(cutoffHz, sampleRate, BUTTERWORTH_Q);
+    }
+
+    @Override
+    public int filter(int sample) {
+        double x = sample;
+        if (!primed) {
+            // Start from the steady state for the first sample so the output does not ramp up from 0
+            z1 = x * (1 - b0);
+            z2 = x * (b2 - a2);
+            primed = true;
+        }
+
+        double y = b0 * x + z1;
+        z1 = b1 * x - a1 * y + z2;
+        z2 = b2 * x - a2 * y;
+
+        return (int) Math.round(y);
+    }
+
+    @Override
+    public void reset() {
+        z1 = 0;
+        z2 = 0;
+        primed = false;
+    }
+}
@@ -42,16 +42,6 @@ public class BraceletMainActivity extends Activity implements BraceletService.Br
      */
     private Handler handler;
 
-    /**
-     * Tells if we are connected or not.
-     */
-    private boolean braceletConnected;
-
-    /**
-     * Tells if we are connected or not.
-     */
-    private boolean mantraConnected;
-
 
     private static final int COLOR_SETTING_DISABLED = 0;
 
@@ -72,14 +62,13 @@ public class BraceletMainActivity extends Activity implements BraceletService.Br
                 BraceletMainActivity.this.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        if (mantraConnected) {
+                        if (isMantraConnected()) {
                             colorSettingEnabledState(COLOR_SETTING_BRIGHTNESS_ONLY);
                         } else {
                             colorSettingEnabledState(COLOR_SETTING_DISABLED);
                         }
                         connectBraceletButton.setText(R.string.connectBracelet);
                         connectBraceletButton.setEnabled(true);
-                        braceletConnected = false;
                     }
                 });
                 break;
@@ -87,14 +76,13 @@ public class BraceletMainActivity extends Activity implements BraceletService.Br
                 BraceletMainActivity.this.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        if (mantraConnected) {
+                        if (isMantraConnected()) {
                             colorSettingEnabledState(COLOR_SETTING_BRIGHTNESS_ONLY);
                         } else {
                             colorSettingEnabledState(COLOR_SETTING_DISABLED);
                         }
                         connectBraceletButton.setText(R.string.connecting);
                         connectBraceletButton.setEnabled(false);
-                        braceletConnected = false;
                     }
                 });
                 break;
@@ -102,14 +90,13 @@ public class BraceletMainActivity extends Activity implements BraceletService.Br
                 BraceletMainActivity.this.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        if (mantraConnected) {
+                        if (isMantraConnected()) {
                             colorSettingEnabledState(COLOR_SETTING_BRIGHTNESS_ONLY);
                         } else {
                             colorSettingEnabledState(COLOR_SETTING_ENABLED);
                         }
                         connectBraceletButton.setText(R.string.disconnectBracelet);
                         connectBraceletButton.setEnabled(true);
-                        braceletConnected = true;
                     }
                 });
                 break;
@@ -117,14 +104,13 @@ public class BraceletMainActivity extends Activity implements BraceletService.Br
                 BraceletMainActivity.this.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        if (mantraConnected) {
+                        if (isMantraConnected()) {
                             colorSettingEnabledState(COLOR_SETTING_BRIGHTNESS_ONLY);
                         } else {
                             colorSettingEnabledState(COLOR_SETTING_DISABLED);
                         }
                         connectBraceletButton.setText(R.string.disconnecting);
                         connectBraceletButton.setEnabled(false);
-                        braceletConnected = false;
                     }
                 });
                 break;
@@ -134,6 +120,20 @@ public class BraceletMainActivity extends Activity implements BraceletService.Br
         }
     }
 
+    /**
+     * Tells if a Bracelet is connected, asks the service so the answer is never stale
+     */
+    private boolean isBraceletConnected() {
+        return braceletService != null && braceletService.getBraceletConnection().isReady();
+    }
+
+    /**
+     * Tells if a Mantra is connected
+     */
+    private boolean isMantraConnected() {
+        return braceletService != null && braceletService.getMantraConnection().isReady();
+    }
+
     private void colorSettingEnabledState (int state) {
 
         switch (state) {
@@ -169,8 +169,7 @@ public class BraceletMainActivity extends Activity implements BraceletService.Br
                     public void run() {
                         connectMantraButton.setText(R.string.connectMantra);
                         connectMantraButton.setEnabled(true);
-                        mantraConnected = false;
-                        if (braceletConnected) {
+                        if (isBraceletConnected()) {
                             colorSettingEnabledState(COLOR_SETTING_ENABLED);
                         } else {
                             colorSettingEnabledState(COLOR_SETTING_DISABLED);
@@ -184,8 +183,7 @@ public class BraceletMainActivity extends Activity implements BraceletService.Br
                     public void run() {
                         connectMantraButton.setText(R.string.connecting);
                         connectMantraButton.setEnabled(false);
-                        mantraConnected = false;
-                        if (braceletConnected) {
+                        if (isBraceletConnected()) {
                             colorSettingEnabledState(COLOR_SETTING_ENABLED);
                         } else {
                             colorSettingEnabledState(COLOR_SETTING_DISABLED);
@@ -199,7 +197,6 @@ public class BraceletMainActivity extends Activity implements BraceletService.Br
                     public void run() {
                         connectMantraButton.setText(R.string.disconnectMantra);
                         connectMantraButton.setEnabled(true);
-                        mantraConnected = true;
                         colorSettingEnabledState(COLOR_SETTING_BRIGHTNESS_ONLY);
                     }
                 });
@@ -211,8 +208,7 @@ public class BraceletMainActivity extends Activity implements BraceletService.Br
                     public void run() {
                         connectMantraButton.setText(R.string.disconnecting);
                         connectMantraButton.setEnabled(false);
-                        mantraConnected = false;
-                        if (braceletConnected) {
+                        if (isBraceletConnected()) {
                             colorSettingEnabledState(COLOR_SETTING_ENABLED);
                         } else {
                             colorSettingEnabledState(COLOR_SETTING_DISABLED);
@@ -247,8 +243,6 @@ public class BraceletMainActivity extends Activity implements BraceletService.Br
 
     public BraceletMainActivity(){
         super();
-        mantraConnected = false;
-        braceletConnected = false;
         handler = new Handler();
     }
 
@@ -272,7 +266,7 @@ public class BraceletMainActivity extends Activity implements BraceletService.Br
         connectBraceletButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                if (braceletConnected) {
+                if (isBraceletConnected()) {
                     braceletService.disconnectBracelet();
                     return;
                 }
@@ -284,7 +278,7 @@ public class BraceletMainActivity extends Activity implements BraceletService.Br
         connectMantraButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                if (mantraConnected) {
+                if (isMantraConnected()) {
                     braceletService.disconnectMantra();
                     return;
                 }
@@ -309,9 +303,9 @@ public class BraceletMainActivity extends Activity implements BraceletService.Br
         brightnessBar.setMax(100);
         brightnessBar.setOnSeekBarChangeListener(barchangeListener);
 
-        if (braceletConnected) {
+        if (isBraceletConnected()) {
             colorSettingEnabledState(COLOR_SETTING_ENABLED);
-        } else if (mantraConnected) {
+        } else if (isMantraConnected()) {
             colorSettingEnabledState(COLOR_SETTING_BRIGHTNESS_ONLY);
         } else {
             colorSettingEnabledState(COLOR_SETTING_DISABLED);
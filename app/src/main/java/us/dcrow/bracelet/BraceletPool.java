@@ -0,0 +1,270 @@
+package us.dcrow.bracelet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Bracelets driven by one breathing stream, each with its own PeripheralLink and ColorWriteScheduler.
+ * A frame is computed once and submitted to every ready Bracelet, each scheduler then paces its own link:
+ * a slow or lossy Bracelet only coalesces its own frames and never holds back the others.
+ * Writes are started round-robin, every poll begins with the next Bracelet, so no link always goes first.
+ *
+ * Each Bracelet has a group number, its place in the order they were added unless set with setGroup.
+ * When the frames come in several groups (see SensorAggregator), a Bracelet shows the group of
+ * its number modulo the group count, so the Bracelets spread evenly over the groups.
+ *
+ * The member list is copied on change, submit and poll do not lock the pool and may run next to
+ * the link callbacks.
+ */
+public class BraceletPool {
+
+    private static final Member[] NO_MEMBERS = new Member[0];
+
+    private volatile Member[] members = NO_MEMBERS;
+
+    /**
+     * Index of the Bracelet the next poll starts with
+     */
+    private final AtomicInteger nextMember = new AtomicInteger();
+
+    /**
+     * Group number of the next Bracelet added
+     */
+    private int nextGroup;
+
+    /**
+     * Adds a link and the scheduler writing to it, not ready until onReady.
+     * A link already in the pool is replaced.
+     */
+    public synchronized void add(PeripheralLink link, ColorWriteScheduler scheduler) {
+        Member[] current = members;
+        int index = indexOf(current, link);
+        Member member = new Member(link, scheduler, index >= 0 ? current[index].group : nextGroup++);
+        if (index >= 0) {
+            Member[] updated = current.clone();
+            updated[index] = member;
+            members = updated;
+        } else {
+            Member[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = member;
+            members = updated;
+        }
+    }
+
+    /**
+     * Removes a link, its pending frame is dropped. Returns false if it was not in the pool.
+     */
+    public synchronized boolean remove(PeripheralLink link) {
+        Member[] current = members;
+        int index = indexOf(current, link);
+        if (index < 0) {
+            return false;
+        }
+        current[index].ready = false;
+        current[index].scheduler.clear();
+
+        Member[] updated = new Member[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        members = updated;
+        return true;
+    }
+
+    /**
+     * Drops every link, the caller closes them.
+     */
+    public synchronized void clear() {
+        for (Member member : members) {
+            member.ready = false;
+            member.scheduler.clear();
+        }
+        members = NO_MEMBERS;
+    }
+
+    /**
+     * Starts sending frames to the link
+     */
+    public void onReady(PeripheralLink link) {
+        Member member = find(link);
+        if (member != null) {
+            member.ready = true;
+        }
+    }
+
+    /**
+     * Stops sending frames to the link and forgets its pending frame, it stays in the pool and may come back.
+     */
+    public void onDisconnected(PeripheralLink link) {
+        Member member = find(link);
+        if (member != null) {
+            member.ready = false;
+            member.scheduler.clear();
+        }
+    }
+
+    /**
+     * Hands the outcome of a write to the scheduler of its link.
+     */
+    public void onWriteComplete(PeripheralLink link, boolean success, long nowMillis) {
+        Member member = find(link);
+        if (member != null) {
+            member.scheduler.onWriteComplete(success, nowMillis);
+        }
+    }
+
+    /**
+     * Queues the frame for every ready Bracelet, each scheduler copies it and writes it as soon as its link is free.
+     * Returns the time after which poll should be called, ColorWriteScheduler.IDLE if nothing is pending.
+     */
+    public long submit(byte[] frame, long originNanos, long nowMillis) {
+        return submit(frame, originNanos, nowMillis, 0, 1);
+    }
+
+    /**
+     * Same as submit(frame, originNanos, nowMillis), only for the Bracelets showing the given group
+     * out of groupCount.
+     */
+    public long submit(byte[] frame, long originNanos, long nowMillis, int group, int groupCount) {
+        Member[] current = members;
+        int count = current.length;
+        if (count == 0) {
+            return ColorWriteScheduler.IDLE;
+        }
+
+        int first = nextIndex(count);
+        for (int i = 0; i < count; i++) {
+            Member member = current[(first + i) % count];
+            if (member.ready && member.group % groupCount == group) {
+                member.scheduler.submit(frame, originNanos, nowMillis);
+            }
+        }
+        return poll(nowMillis);
+    }
+
+    /**
+     * Starts the pending writes of the Bracelets whose link is free, beginning with the next one in turn.
+     * Returns the shortest time after which poll should be called again, ColorWriteScheduler.IDLE if nothing is pending.
+     */
+    public long poll(long nowMillis) {
+        Member[] current = members;
+        int count = current.length;
+        if (count == 0) {
+            return ColorWriteScheduler.IDLE;
+        }
+
+        int first = nextIndex(count);
+        long delay = ColorWriteScheduler.IDLE;
+        for (int i = 0; i < count; i++) {
+            Member member = current[(first + i) % count];
+            if (!member.ready) {
+                continue;
+            }
+            long memberDelay = member.scheduler.poll(nowMillis);
+            if (memberDelay != ColorWriteScheduler.IDLE && (delay == ColorWriteScheduler.IDLE || memberDelay < delay)) {
+                delay = memberDelay;
+            }
+        }
+        return delay;
+    }
+
+    public boolean contains(String address) {
+        for (Member member : members) {
+            if (member.link.getAddress().equals(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Number of links, connected or not
+     */
+    public int size() {
+        return members.length;
+    }
+
+    /**
+     * Number of links frames are sent to
+     */
+    public int getReadyCount() {
+        int ready = 0;
+        for (Member member : members) {
+            if (member.ready) {
+                ready++;
+            }
+        }
+        return ready;
+    }
+
+    public List<PeripheralLink> getLinks() {
+        Member[] current = members;
+        List<PeripheralLink> links = new ArrayList<PeripheralLink>(current.length);
+        for (Member member : current) {
+            links.add(member.link);
+        }
+        return links;
+    }
+
+    /**
+     * Scheduler of a link, exposes its coalesced and dropped frame counts. Null if the link is not in the pool.
+     */
+    public ColorWriteScheduler getScheduler(PeripheralLink link) {
+        Member member = find(link);
+        return member != null ? member.scheduler : null;
+    }
+
+    /**
+     * Moves a Bracelet to another group, e.g. to pair it with a given sensor.
+     */
+    public void setGroup(PeripheralLink link, int group) {
+        if (group < 0) {
+            throw new IllegalArgumentException("Group out of range: " + group);
+        }
+        Member member = find(link);
+        if (member != null) {
+            member.group = group;
+        }
+    }
+
+    /**
+     * Group shown by a Bracelet out of groupCount, -1 if the link is not in the pool
+     */
+    public int getGroup(PeripheralLink link, int groupCount) {
+        Member member = find(link);
+        return member != null ? member.group % groupCount : -1;
+    }
+
+    private int nextIndex(int count) {
+        return (nextMember.getAndIncrement() & Integer.MAX_VALUE) % count;
+    }
+
+    private Member find(PeripheralLink link) {
+        Member[] current = members;
+        int index = indexOf(current, link);
+        return index >= 0 ? current[index] : null;
+    }
+
+    private static int indexOf(Member[] members, PeripheralLink link) {
+        for (int i = 0; i < members.length; i++) {
+            if (members[i].link == link) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class Member {
+        final PeripheralLink link;
+        final ColorWriteScheduler scheduler;
+        volatile boolean ready;
+        volatile int group;
+
+        Member(PeripheralLink link, ColorWriteScheduler scheduler, int group) {
+            this.link = link;
+            this.scheduler = scheduler;
+            this.group = group;
+        }
+    }
+}
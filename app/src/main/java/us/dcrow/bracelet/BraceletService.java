@@ -6,25 +6,27 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.BluetoothLeScanner;
 import android.content.Intent;
-import android.graphics.Color;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.Collections;
-import java.util.ConcurrentModificationException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Bracelet background bluetooth management service
@@ -38,87 +40,118 @@ public class BraceletService extends IntentService {
     private BluetoothAdapter bluetoothAdapter;
 
     /**
-     * The local bluetooth scanner, basic bluetooth interface
+     * Connections to the peripherals, a GattPeripheralLink or a simulated one, null until the first connect.
+     * These are the latest Bracelet and Mantra connected, braceletPool and breathingMixer hold all of them.
      */
-    private BluetoothLeScanner bleScanner;
+    private volatile PeripheralLink braceletLink;
+    private volatile PeripheralLink mantraLink;
 
     /**
-     * The bluetooth generic attribute profile
+     * Every connected Bracelet, each with a write scheduler keeping only its latest color
      */
-    private BluetoothGatt braceletBluetoothGatt;
+    private final BraceletPool braceletPool = new BraceletPool();
 
     /**
-     * The bluetooth generic attribute profile
+     * Runs the simulated peripherals, created with the first of them
      */
-    private BluetoothGatt mantraBluetoothGatt;
-
-    /**
-     * The bluetooth send characteristic
-     */
-    private BluetoothGattCharacteristic braceletSendCharacteristic;
+    private ScheduledExecutorService simulationExecutor;
 
     /**
      * Service where to send data.
      * Discovered empirically,
      * it would be possible to find it programmatically by parsing the GATT messages.
      */
-    private final String serviceUUID = "00002220-0000-1000-8000-00805f9b34fb";
+    private static final UUID SERVICE_UUID = UUID.fromString("00002220-0000-1000-8000-00805f9b34fb");
 
     /**
      * Send Characteristic.
      * Discovered empirically,
      * it would be possible to find it programmatically by parsing the GATT messages.
      */
-    private final String sendCharacteristicUUID = "00002222-0000-1000-8000-00805f9b34fb";
+    private static final UUID SEND_CHARACTERISTIC_UUID = UUID.fromString("00002222-0000-1000-8000-00805f9b34fb");
 
     /**
      * Receive Characteristic
      * Discovered empirically,
      * it would be possible to find it programmatically by parsing the GATT messages.
      */
-    private final String receiveCharacteristicUUID = "00002221-0000-1000-8000-00805f9b34fb";
+    private static final UUID RECEIVE_CHARACTERISTIC_UUID = UUID.fromString("00002221-0000-1000-8000-00805f9b34fb");
 
     /**
-     * Client Config Characteristic
-     * Discovered empirically,
-     * it would be possible to find it programmatically by parsing the GATT messages.
+     * Timeout for searching for an RFduino.
      */
-    private final String clientConfigCharacteristicUUID = "00002902-0000-1000-8000-00805f9b34fb";
+    private static final long SCAN_TIMEOUT = 5000;
 
     /**
-     * Timeout for searching for an RFduino.
+     * The peripherals we drive: the Bracelet is written to, the Mantra notifies its breathing samples
      */
-    private static final long SCAN_TIMEOUT = 5000;
+    private static final PeripheralProfile BRACELET = new PeripheralProfile("Bracelet", SERVICE_UUID, null,
+            SEND_CHARACTERISTIC_UUID);
+    private static final PeripheralProfile MANTRA = new PeripheralProfile("Mantra", SERVICE_UUID,
+            RECEIVE_CHARACTERISTIC_UUID, null);
 
     /**
-     * Tells if we are connected or not.
+     * Addresses of the simulated peripherals, never cached
      */
-    private boolean braceletConnected;
+    private static final String SIMULATED_BRACELET_ADDRESS = "00:00:00:00:01:%02X";
+    private static final String SIMULATED_MANTRA_ADDRESS = "00:00:00:00:02:%02X";
 
     /**
-     * Tells if we are connected or not.
+     * Number of sensor samples that can wait for the processing thread, per sensor
      */
-    private boolean mantraConnected;
+    private static final int SAMPLE_BUFFER_SIZE = 256;
 
     /**
-     * Used to call functions asynchronously.
+     * Time to wait before writing a color again after the stack refused the write
+     */
+    private static final long WRITE_RETRY_DELAY = 50;
+
+    /**
+     * Connection state of the Bracelets and of the Mantras, READY while at least one of them is.
+     * The activity is told about the transitions on the main thread, see connectionObserver.
+     */
+    private ConnectionStateMachine braceletConnection;
+    private ConnectionStateMachine mantraConnection;
+
+    /**
+     * Used to call functions asynchronously, runs on the processing thread.
      */
     private Handler handler;
 
     /**
-     * Max calibrated value for the breathing sensor
+     * Processing thread, runs the signal pipeline, the timeouts and the write scheduling
+     */
+    private HandlerThread processingThread;
+
+    /**
+     * Tells if a drain of the sample buffers is posted and not started yet
+     */
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    /**
+     * Time taken by sensor samples to reach each stage up to the Bracelet write
+     */
+    private final PipelineLatency pipelineLatency = new PipelineLatency(new PipelineLatency.Clock() {
+        @Override
+        public long nanoTime() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    });
+
+    /**
+     * Records the current breathing session, null when not recording
      */
-    private int maxSensorValue;
+    private volatile SessionRecorder sessionRecorder;
 
     /**
-     * Max calibrated value for the breathing sensor
+     * Single scan looking for both the Bracelet and Mantra
      */
-    private int minSensorValue;
+    private ScanSession scanSession;
 
     /**
-     * Filtered sensor value
+     * Finds and connects the Bracelets and Mantras, see braceletClient and mantraClient
      */
-    private int filteredSensorValue;
+    private PeripheralManager peripheralManager;
 
     /**
      * Latest color and brightness values
@@ -126,18 +159,26 @@ public class BraceletService extends IntentService {
     private int r = 255;
     private int g = 255;
     private int b = 255;
-    private int a = 10;
-
+    private volatile int a = 10;
 
     /**
-     * Sample window
+     * Runs every Mantra through its own signal pipeline and turns the merged hues into breathing frames
+     * at a fixed rate, one stream per group of Bracelets
      */
-    private List<Integer> sampleWindow;
+    private final BreathingMixer breathingMixer = new BreathingMixer(SAMPLE_BUFFER_SIZE, a, pipelineLatency,
+            new BreathingMixer.FrameSink() {
+                @Override
+                public void onFrame(int group, byte[] frame, long originNanos) {
+                    pipelineLatency.record(PipelineLatency.STAGE_COLOR_MAPPED, originNanos,
+                            SystemClock.elapsedRealtimeNanos());
+                    sendBreathingColor(group, frame, originNanos);
+                }
+            });
 
     /**
-     * Filter window
+     * Reused buffer for the color set from the seek bars
      */
-    private List<Integer> filterWindow;
+    private final byte[] manualFrame = new byte[HuePalette.FRAME_SIZE];
 
     /**
      * Used for logging.
@@ -161,7 +202,6 @@ public class BraceletService extends IntentService {
 
     public BraceletService() {
         super("BraceletService");
-        handler = new Handler();
     }
 
     @Override
@@ -173,6 +213,37 @@ public class BraceletService extends IntentService {
         public BraceletService getServiceInstance(){
             return BraceletService.this;
         }
+
+        /**
+         * Link parameters of every connected Bracelet, in the order of the pool
+         */
+        public List<ConnectionProfile> getBraceletConnectionProfiles() {
+            List<PeripheralLink> links = braceletPool.getLinks();
+            List<ConnectionProfile> profiles = new ArrayList<ConnectionProfile>(links.size());
+            for (PeripheralLink link : links) {
+                profiles.add(link.getConnectionProfile());
+            }
+            return profiles;
+        }
+
+        /**
+         * Link parameters of every connected Mantra, in the order of the sensors
+         */
+        public List<ConnectionProfile> getMantraConnectionProfiles() {
+            List<SensorChannel> sensors = breathingMixer.getSensors();
+            List<ConnectionProfile> profiles = new ArrayList<ConnectionProfile>(sensors.size());
+            for (SensorChannel sensor : sensors) {
+                profiles.add(sensor.getLink().getConnectionProfile());
+            }
+            return profiles;
+        }
+
+        /**
+         * Latency histogram of a PipelineLatency.STAGE_*, for its p50, p99 and max
+         */
+        public LatencyHistogram getLatencyHistogram(int stage) {
+            return pipelineLatency.getHistogram(stage);
+        }
     }
 
     // Here Bracelet Main Activity register to the service as Callbacks client
@@ -196,13 +267,102 @@ public class BraceletService extends IntentService {
     public void onCreate() {
         super.onCreate();
 
+        processingThread = new HandlerThread("BraceletProcessing", Process.THREAD_PRIORITY_DISPLAY);
+        processingThread.start();
+        handler = new Handler(processingThread.getLooper());
+
+        HandlerExecutor mainExecutor = new HandlerExecutor(new Handler(Looper.getMainLooper()));
+        braceletConnection = new ConnectionStateMachine("Bracelet", mainExecutor);
+        braceletConnection.addObserver(connectionObserver);
+        mantraConnection = new ConnectionStateMachine("Mantra", mainExecutor);
+        mantraConnection.addObserver(connectionObserver);
+
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        scanSession = new ScanSession(bluetoothAdapter, handler, SCAN_TIMEOUT);
+        peripheralManager = new PeripheralManager(this, bluetoothAdapter, handler, scanSession,
+                new PeripheralAddressCache(this));
+        peripheralManager.register(BRACELET, braceletClient);
+        peripheralManager.register(MANTRA, mantraClient);
 
         mNM = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
 
 
     }
 
+    @Override
+    public void onDestroy() {
+        stopSessionRecording();
+        if (simulationExecutor != null) {
+            simulationExecutor.shutdownNow();
+        }
+        processingThread.quitSafely();
+        super.onDestroy();
+    }
+
+    /**
+     * Prints the trace and the latency figures, see "adb shell dumpsys activity service BraceletService".
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Latency since notification: filtered " + pipelineLatency.getHistogram(PipelineLatency.STAGE_FILTERED));
+        writer.println("  color mapped " + pipelineLatency.getHistogram(PipelineLatency.STAGE_COLOR_MAPPED));
+        writer.println("  write started " + pipelineLatency.getHistogram(PipelineLatency.STAGE_WRITE_STARTED));
+        writer.println("  write acknowledged " + pipelineLatency.getHistogram(PipelineLatency.STAGE_WRITE_ACKNOWLEDGED));
+        for (SensorChannel sensor : breathingMixer.getSensors()) {
+            writer.println("Sensor " + sensor.getLink().getAddress() + ": " + sensor.getDroppedSamples()
+                    + " samples dropped, " + sensor.getDecoder().getLostPackets() + " packets lost");
+        }
+        TraceLog.dump(writer);
+    }
+
+    /**
+     * Starts recording the raw sensor samples and the breathing frames to a new file in the sessions
+     * directory, see SessionRecorder. Returns the file, or null if it could not be created.
+     */
+    public synchronized File startSessionRecording() {
+        stopSessionRecording();
+
+        File directory = new File(getFilesDir(), "sessions");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Could not create " + directory);
+            return null;
+        }
+        SessionRecorder recorder = new SessionRecorder(new File(directory, "session-" + System.currentTimeMillis() + ".brs"));
+        try {
+            recorder.start(SystemClock.elapsedRealtimeNanos());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start recording the session", e);
+            return null;
+        }
+        sessionRecorder = recorder;
+        Log.d(TAG, "Recording session to " + recorder.getFile());
+        return recorder.getFile();
+    }
+
+    /**
+     * Stops the session recording, if any, and closes its file.
+     */
+    public synchronized void stopSessionRecording() {
+        SessionRecorder recorder = sessionRecorder;
+        if (recorder == null) {
+            return;
+        }
+        sessionRecorder = null;
+        try {
+            recorder.stop();
+            Log.d(TAG, "Recorded session to " + recorder.getFile() + ", " + recorder.getDroppedRecords() + " records dropped");
+        } catch (IOException e) {
+            Log.e(TAG, "Session recording failed", e);
+        }
+    }
+
+    /**
+     * Turns the in-memory trace of the sample path on or off, see TraceLog.
+     */
+    public void setTraceEnabled(boolean enabled) {
+        TraceLog.setEnabled(enabled);
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         lastStartId = startId;
@@ -213,108 +373,223 @@ public class BraceletService extends IntentService {
         return START_STICKY;
     }
 
-        public void disconnectBracelet () {
-            Log.d(TAG, "Bracelet scanning manually stopped");
-            bluetoothAdapter.stopLeScan(handleBraceletScan);
-            braceletConnected = false;
-            activity.braceletConnectionStateChanged(BluetoothProfile.STATE_DISCONNECTED);
+    public void disconnectBracelet () {
+        disconnectPeripherals(braceletConnection, BRACELET);
+    }
+
+    public void connectBracelet () {
+        //If connected, the same button is used for disconnecting
+        if (braceletConnection.isReady()) {
+            disconnectPeripherals(braceletConnection, BRACELET);
+            return;
         }
 
+        // Reconnects to the last known Bracelet or scans for one, see braceletClient
+        connectPeripherals(braceletConnection, BRACELET, 1);
+    }
+
+    /**
+     * Connects up to count Bracelets, for group sessions. They all show the same breathing frames,
+     * computed once and written to each Bracelet at its own pace, see BraceletPool.
+     * Scans until count Bracelets were found or the scan timed out, Bracelets already connected count.
+     * Returns false if the Bracelets are already connecting or disconnecting.
+     */
+    public boolean connectBracelets(int count) {
+        return connectPeripherals(braceletConnection, BRACELET, count);
+    }
+
+    public void disconnectMantra () {
+        disconnectPeripherals(mantraConnection, MANTRA);
+    }
 
-        public void connectBracelet () {
+    public void connectMantra () {
+        //If connected, the same button is used for disconnecting
+        if (mantraConnection.isReady()) {
+            disconnectPeripherals(mantraConnection, MANTRA);
+            return;
+        }
 
-        if (!braceletConnected) {
-            bluetoothAdapter.startLeScan(handleBraceletScan);
-            activity.braceletConnectionStateChanged(BluetoothProfile.STATE_CONNECTING);
+        //If not connected, let's look for Mantra and connect to it, see mantraClient
+        connectPeripherals(mantraConnection, MANTRA, 1);
+    }
 
-            //Program a to stop the scanning after some seconds
-            handler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    if (!braceletConnected) {
-                        //Cancel scan only if not connected
-                        Log.d(TAG, "Bracelet scanning timed out, stopping the scan");
-                        bluetoothAdapter.stopLeScan(handleBraceletScan);
-                        //All graphical things must be run on the UI thread:
-
-                        braceletConnected = false;
-                        // Make braceletConnectionStateChanged callback connected to Main Activity to update views
-                        activity.braceletConnectionStateChanged(BluetoothProfile.STATE_DISCONNECTED);
-
-                    }
-                }
-            }, SCAN_TIMEOUT);
+    /**
+     * Connects up to count Mantras, each with its own calibration. Their hues are merged by the
+     * sensor aggregator, see setSensorAggregator. Mantras already connected count.
+     * Returns false if the Mantras are already connecting or disconnecting.
+     */
+    public boolean connectMantras(int count) {
+        return connectPeripherals(mantraConnection, MANTRA, count);
+    }
 
-        } else {
-            //If connected, the same button is used for disconnecting
-            braceletConnected = true;
-            activity.braceletConnectionStateChanged(BluetoothProfile.STATE_CONNECTED);
+    /**
+     * Starts connecting from IDLE, or adds devices to the ones READY. Any other state means a connect or a
+     * disconnect is under way, e.g. a second tap while scanning, and nothing is started.
+     */
+    private boolean connectPeripherals(ConnectionStateMachine connection, PeripheralProfile profile, int count) {
+        if (!connection.transition(ConnectionStateMachine.STATE_IDLE, ConnectionStateMachine.STATE_SCANNING)
+                && !connection.isReady()) {
+            Log.d(TAG, "Not connecting, " + connection);
+            return false;
+        }
+        peripheralManager.connect(profile, count);
+        return true;
+    }
 
-            if (braceletBluetoothGatt != null) {
-                braceletBluetoothGatt.disconnect();
-                braceletConnected = false;
+    /**
+     * Stops the scan and disconnects every link of the profile, from whatever state the machine is in.
+     * The links still connecting are dropped without a word, so unless a ready link is left to report its
+     * disconnection (see onPeripheralDisconnected) the machine goes IDLE right away.
+     */
+    private void disconnectPeripherals(ConnectionStateMachine connection, PeripheralProfile profile) {
+        int from;
+        do {
+            from = connection.getState();
+            if (from == ConnectionStateMachine.STATE_IDLE || from == ConnectionStateMachine.STATE_DISCONNECTING) {
+                Log.d(TAG, "Not disconnecting, " + connection);
+                return;
             }
+        } while (!connection.transition(from, ConnectionStateMachine.STATE_DISCONNECTING));
+
+        // Cancelled first, the manager does not replace the links dropped below
+        peripheralManager.cancel(profile);
+        boolean linkReady = hasReadyLink(profile);
+        peripheralManager.disconnect(profile);
+        if (!linkReady) {
+            connection.transition(ConnectionStateMachine.STATE_DISCONNECTING, ConnectionStateMachine.STATE_IDLE);
         }
+    }
 
+    private boolean hasReadyLink(PeripheralProfile profile) {
+        for (PeripheralLink link : peripheralManager.getLinks(profile)) {
+            if (link.isReady()) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public void disconnectMantra () {
-        Log.d(TAG, "Bracelet scanning manually stopped");
-        bluetoothAdapter.stopLeScan(handleMantraScan);
-        mantraConnected = false;
-        activity.mantraConnectionStateChanged(BluetoothProfile.STATE_DISCONNECTED);
+    /**
+     * Connection state of the Bracelets, READY while at least one of them is
+     */
+    public ConnectionStateMachine getBraceletConnection() {
+        return braceletConnection;
     }
 
-    public void connectMantra () {
+    /**
+     * Connection state of the Mantras, READY while at least one of them is
+     */
+    public ConnectionStateMachine getMantraConnection() {
+        return mantraConnection;
+    }
 
-        if (!mantraConnected) {
-            //If not connected, let's look for Mantra and connect to it
+    /**
+     * Tells the activity about the connection transitions, on the main thread and in order.
+     * The in-between states all show as connecting.
+     */
+    private final ConnectionStateMachine.Observer connectionObserver = new ConnectionStateMachine.Observer() {
+        @Override
+        public void onStateChanged(ConnectionStateMachine machine, int from, int to) {
+            Log.d(TAG, machine.getName() + " " + ConnectionStateMachine.getStateName(from) + " -> "
+                    + ConnectionStateMachine.getStateName(to));
+            BraceletServiceInterface activity = BraceletService.this.activity;
+            int state = toProfileState(to);
+            if (activity == null || state == toProfileState(from)) {
+                return;
+            }
+            if (machine == braceletConnection) {
+                activity.braceletConnectionStateChanged(state);
+            } else {
+                activity.mantraConnectionStateChanged(state);
+            }
+        }
+    };
 
-            // TODO disable mantra button
-            //connectMantraButton.setEnabled(false);
+    /**
+     * Maps a ConnectionStateMachine state to the BluetoothProfile.STATE_* the activity shows
+     */
+    private static int toProfileState(int state) {
+        switch (state) {
+            case ConnectionStateMachine.STATE_READY:
+                return BluetoothProfile.STATE_CONNECTED;
+            case ConnectionStateMachine.STATE_DISCONNECTING:
+                return BluetoothProfile.STATE_DISCONNECTING;
+            case ConnectionStateMachine.STATE_IDLE:
+                return BluetoothProfile.STATE_DISCONNECTED;
+            default:
+                return BluetoothProfile.STATE_CONNECTING;
+        }
+    }
 
-            bluetoothAdapter.startLeScan(handleMantraScan);
-            activity.mantraConnectionStateChanged(BluetoothProfile.STATE_CONNECTING);
+    /**
+     * Moves the machine forward, one checked transition at a time, until it is at least in the state a link
+     * reached. A link may be ahead of the machine: the stack reconnects it by itself while IDLE, or it was found
+     * while the machine was still scanning. Returns false while disconnecting, the link is not wanted anymore.
+     */
+    private static boolean catchUp(ConnectionStateMachine connection, int to) {
+        while (true) {
+            int from = connection.getState();
+            if (from == ConnectionStateMachine.STATE_DISCONNECTING) {
+                return false;
+            }
+            if (from >= to) {
+                return true;
+            }
+            // Lost a race if it fails, the next round looks again
+            connection.transition(from, from == ConnectionStateMachine.STATE_IDLE
+                    ? ConnectionStateMachine.STATE_CONNECTING : from + 1);
+        }
+    }
 
-            //Program a to stop the scanning after some seconds
-            handler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    if (!mantraConnected) {
-                        //Cancel scan only if not connected
-                        Log.d(TAG, "Mantra scanning timed out, stopping the scan");
-                        bluetoothAdapter.stopLeScan(handleMantraScan);
-
-                        mantraConnected = false;
-                        activity.mantraConnectionStateChanged(BluetoothProfile.STATE_DISCONNECTED);
-                    }
-                }
-            }, SCAN_TIMEOUT);
+    /**
+     * A link of the machine's peripherals connected and is being set up. Dropped if we are disconnecting.
+     */
+    private static void onPeripheralConnected(ConnectionStateMachine connection, PeripheralLink link) {
+        if (!catchUp(connection, ConnectionStateMachine.STATE_DISCOVERING)) {
+            Log.d(TAG, "Dropping " + link.getAddress() + ", " + connection);
+            link.disconnect();
+        }
+    }
 
-        } else {
-            //If connected, the same button is used for disconnecting
-            mantraConnected = true;
-            activity.mantraConnectionStateChanged(BluetoothProfile.STATE_CONNECTED);
+    /**
+     * A link of the machine's peripherals is set up, also when the stack reconnected it by itself.
+     * Returns false if we are disconnecting, the link is then dropped and must not be used.
+     */
+    private static boolean onPeripheralReady(ConnectionStateMachine connection, PeripheralLink link) {
+        if (!catchUp(connection, ConnectionStateMachine.STATE_READY)) {
+            Log.d(TAG, "Dropping " + link.getAddress() + ", " + connection);
+            link.disconnect();
+            return false;
+        }
+        return true;
+    }
 
-            if (mantraBluetoothGatt != null) {
-                mantraBluetoothGatt.disconnect();
-                mantraConnected = false;
-            }
+    /**
+     * The manager scans again after a link could not be set up, unless another one is READY
+     */
+    private static void onPeripheralScanRestarted(ConnectionStateMachine connection) {
+        if (!connection.transition(ConnectionStateMachine.STATE_CONNECTING, ConnectionStateMachine.STATE_SCANNING)) {
+            connection.transition(ConnectionStateMachine.STATE_DISCOVERING, ConnectionStateMachine.STATE_SCANNING);
         }
     }
 
+    /**
+     * A link of the machine's peripherals dropped, the machine goes IDLE with the last of them.
+     * While connecting it stays put, the manager connects or scans again, see onPeripheralScanRestarted.
+     */
+    private void onPeripheralDisconnected(ConnectionStateMachine connection, PeripheralProfile profile) {
+        if (hasReadyLink(profile)) {
+            return;
+        }
+        if (!connection.transition(ConnectionStateMachine.STATE_READY, ConnectionStateMachine.STATE_IDLE)) {
+            connection.transition(ConnectionStateMachine.STATE_DISCONNECTING, ConnectionStateMachine.STATE_IDLE);
+        }
+    }
 
     // TODO: make a button to call stop bracelet service
     public void stopBraceletService () {
         //When the application stops we disconnect
-        bluetoothAdapter.stopLeScan(handleMantraScan);
-        bluetoothAdapter.stopLeScan(handleBraceletScan);
-        if(braceletBluetoothGatt != null) {
-            braceletBluetoothGatt.disconnect();
-        }
-        if(mantraBluetoothGatt != null) {
-            mantraBluetoothGatt.disconnect();
-        }
+        peripheralManager.stop();
 
         stopSelf();
         showNotification(getString(R.string.braceletServiceStopped));
@@ -345,27 +620,18 @@ public class BraceletService extends IntentService {
     }
 
     /**
-     * Sends the breathing color to Bracelet.
-     * Gets color value from the BLE characteristic change and brightness from the seekbar and sends them as 4 bytes.
+     * Sends the breathing color to the Bracelets of a group.
+     * Gets the frame (hue from the render loop, brightness from the seekbar) from the breathingMixer.
      */
-    private void sendBreathingColor(int value){
-
-        int colorToSend = mapSensorValueToColor(value);
-
-        byte[] data = new byte[4];
-        data[0] = (byte) Color.red(colorToSend);
-        data[1] = (byte) Color.green(colorToSend);
-        data[2] = (byte) Color.blue(colorToSend);
-        data[3] = (byte) a; // use last stored brightness level
+    private void sendBreathingColor(int group, byte[] frame, long originNanos){
 
-        if(braceletSendCharacteristic != null){
-            Log.d(TAG, "Sending Breathing Color to send characteristic:" + braceletSendCharacteristic);
-            braceletSendCharacteristic.setValue(data);
-            Log.d(TAG, "Sending Breathing Color R:" + Color.red(colorToSend) + " G:" + Color.green(colorToSend) + " B:" + Color.blue(colorToSend));
-
-            braceletSendCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-            braceletBluetoothGatt.writeCharacteristic(braceletSendCharacteristic);
+        SessionRecorder recorder = sessionRecorder;
+        if (recorder != null && group == 0) {
+            recorder.recordFrame(frame, SystemClock.elapsedRealtimeNanos());
         }
+
+        schedulePendingColorWrites(braceletPool.submit(frame, originNanos, SystemClock.uptimeMillis(), group,
+                breathingMixer.getGroupCount()));
     }
 
     /**
@@ -377,92 +643,275 @@ public class BraceletService extends IntentService {
         this.b = b;
         this.g = g;
         this.a = a;
+        breathingMixer.setBrightness(a);
+
+        manualFrame[0] = (byte) r;
+        manualFrame[1] = (byte) g;
+        manualFrame[2] = (byte) b;
+        manualFrame[3] = (byte) a;
+
+        scheduleColorWrite(manualFrame, PipelineLatency.NO_ORIGIN);
+    }
+
+    /**
+     * Hands a color frame to the write scheduler of every Bracelet, only the latest frame is kept while
+     * a write is in flight. originNanos is the arrival time of the sample the frame shows, for the latency histograms.
+     */
+    private void scheduleColorWrite(byte[] frame, long originNanos) {
+        schedulePendingColorWrites(braceletPool.submit(frame, originNanos, SystemClock.uptimeMillis()));
+    }
 
-        byte[] data = new byte[4];
-        data[0] = (byte) r;
-        data[1] = (byte) g;
-        data[2] = (byte) b;
-        data[3] = (byte) a;
+    /**
+     * Makes sure frames left pending behind refused writes go out once the retry delay passed, the frames
+     * waiting for a write in flight go out with its completion.
+     */
+    private void schedulePendingColorWrites(long delay) {
+        if (delay != ColorWriteScheduler.IDLE) {
+            handler.removeCallbacks(flushColorWrites);
+            handler.postDelayed(flushColorWrites, delay);
+        }
+    }
 
-        if(braceletSendCharacteristic != null){
-            Log.d(TAG, "Sending Color to send characteristic:" + braceletSendCharacteristic);
-            braceletSendCharacteristic.setValue(data);
-            braceletSendCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-            braceletBluetoothGatt.writeCharacteristic(braceletSendCharacteristic);
+    private final Runnable flushColorWrites = new Runnable() {
+        @Override
+        public void run() {
+            schedulePendingColorWrites(braceletPool.poll(SystemClock.uptimeMillis()));
         }
+    };
+
+    /**
+     * Changes how different a breathing color must be from the one shown to be sent, 0 sends every change.
+     */
+    public void setFrameDedupThreshold(int threshold) {
+        breathingMixer.setDedupThreshold(threshold);
     }
 
     /**
-     * Ranges the sensor data (get the maximum and minimum values)
+     * Breathing frames skipped because they looked the same as the one shown
      */
-    private void rangeSensorValue (int sensorValue) {
+    public long getSavedFrameWrites() {
+        return breathingMixer.getSavedWrites();
+    }
 
-        int sensorValueBuffer = sensorValue;
-        List<Integer> sampleWindowBuffer;
+    /**
+     * The connected Bracelets, exposes the write scheduler of each with its coalesced and dropped frame counts.
+     */
+    public BraceletPool getBraceletPool() {
+        return braceletPool;
+    }
 
-        try {
-            // If sampleWindow is at capacity remove zeroth entry before adding
-            if (sampleWindow.size() >= 400) {
-                sampleWindow.remove(0);
-            }
-            sampleWindow.add(sensorValue);
-
-            // If sampleWindow is at capacity remove zeroth entry before adding
-            if (filterWindow.size() >= 15) {
-                //calculate average
-                int sum = 0;
-                for (int vals : filterWindow) {
-                    sum += vals;
-                }
+    /**
+     * Chooses how scan results are delivered, ScanSession.DELIVERY_LOW_LATENCY (default) or ScanSession.DELIVERY_BATCHED.
+     */
+    public void setScanDeliveryMode(int deliveryMode) {
+        scanSession.setDeliveryMode(deliveryMode);
+    }
 
-                // Set filtered window value to average
-                filteredSensorValue =  sum / filterWindow.size();
+    /**
+     * Changes the number of samples used for ranging the breathing sensors.
+     * The ranges are recalibrated from scratch.
+     */
+    public void setCalibrationWindow(final int windowSize) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                breathingMixer.setCalibrationWindow(windowSize);
+            }
+        });
+    }
 
-                filterWindow.remove(0);
+    /**
+     * Changes the number of samples averaged into the filtered sensor value.
+     */
+    public void setFilterWidth(final int width) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                breathingMixer.setFilterWidth(width);
             }
+        });
+    }
 
-            filterWindow.add(sensorValue);
+    /**
+     * Replaces the smoothing applied to the samples of the first sensor, e.g. with a SignalFilterChain
+     * of a HampelFilter followed by a BiquadLowPassFilter for lower latency.
+     * The filter is handed over to the processing thread and must not be used by the caller anymore.
+     */
+    public void setSignalFilter(SignalFilter filter) {
+        setSignalFilter(0, filter);
+    }
 
-            // Use buffer to avoid concurrent modification
-            sampleWindowBuffer = sampleWindow;
+    /**
+     * Same as setSignalFilter(filter), for a sensor by index in connection order.
+     * Each sensor needs its own filter instance.
+     */
+    public void setSignalFilter(final int sensor, final SignalFilter filter) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                breathingMixer.setSignalFilter(sensor, filter);
+            }
+        });
+    }
 
-            if (sampleWindowBuffer != null && sampleWindowBuffer.size() == 400) {
-                maxSensorValue = Collections.max(sampleWindowBuffer);
-                minSensorValue = Collections.min(sampleWindowBuffer);
+    /**
+     * Chooses how the sensors are merged into Bracelet frames: AverageAggregator (default),
+     * LeaderAggregator, or RoutingAggregator to give each sensor its own Bracelets.
+     */
+    public void setSensorAggregator(SensorAggregator aggregator) {
+        breathingMixer.setAggregator(aggregator);
+    }
+
+    /**
+     * Replaces the colors used for the breathing hues, e.g. with a HuePalette.gradient
+     */
+    public void setHuePalette(final HuePalette palette) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                breathingMixer.setHuePalette(palette);
             }
+        });
+    }
+
+    /**
+     * Queues the samples of a sensor notification for the processing thread, called from the BLE binder thread.
+     */
+    private void enqueueSensorSamples(SensorChannel sensor, byte[] value) {
+        long receivedNanos = SystemClock.elapsedRealtimeNanos();
 
-            Log.d(TAG, "Ranged max: " + maxSensorValue + " Ranged min: " + minSensorValue);
+        // One uint8 sample, or a framed batch of samples, see MantraPacketDecoder
+        int count = sensor.onNotification(value, receivedNanos);
+        if (count == 0) {
+            return;
         }
-        catch (ConcurrentModificationException e) {
-            System.err.println("Caught exception: " + e.getMessage());
+        if (drainScheduled.compareAndSet(false, true)) {
+            handler.post(drainSamples);
+        }
+
+        // The session format holds a single sensor, the first one
+        SessionRecorder recorder = sessionRecorder;
+        if (recorder != null && breathingMixer.getSensor(0) == sensor) {
+            recorder.recordSamples(sensor.getDecoder().getSamples(), count, receivedNanos);
         }
     }
 
     /**
-     * Color mapping helper, outputs a value between 0 and 360 used for converting to hue
+     * Runs the queued sensor samples through the signal pipelines, on the processing thread.
      */
-    private int mapSensorValueToColor(int value) {
+    private final Runnable drainSamples = new Runnable() {
+        @Override
+        public void run() {
+            // Clear first, a sample offered while draining posts a new drain
+            drainScheduled.set(false);
+
+            // Every sample goes through the filters of its sensor, only the newest hues matter for rendering
+            long now = SystemClock.uptimeMillis();
+            if (breathingMixer.process(now)) {
+                handler.removeCallbacks(renderTick);
+                handler.postAtTime(renderTick, now);
+                // Short connection intervals while streaming
+                applyConnectionPriority(ConnectionProfile.PRIORITY_HIGH);
+            }
+        }
+    };
 
-        // populate filterSensorValue
-        rangeSensorValue(value);
+    /**
+     * Sends one breathing frame per tick at the render frame rate, whatever the sensor rate,
+     * so the radio load on the Bracelet link stays bounded. Runs on the processing thread.
+     */
+    private final Runnable renderTick = new Runnable() {
+        @Override
+        public void run() {
+            long nextTick = breathingMixer.renderTick(SystemClock.uptimeMillis());
+            if (nextTick == BreathingMixer.STOPPED) {
+                // Sensors went quiet, the last frame stays on the Bracelets
+                applyConnectionPriority(ConnectionProfile.PRIORITY_LOW_POWER);
+                return;
+            }
+            handler.postAtTime(this, nextTick);
+        }
+    };
 
-        int inputRange = maxSensorValue - minSensorValue;
+    /**
+     * Asks every link for a connection priority, the profiles are updated once the request went through.
+     */
+    private void applyConnectionPriority(int priority) {
+        for (PeripheralLink link : braceletPool.getLinks()) {
+            link.requestConnectionPriority(priority);
+        }
+        for (SensorChannel sensor : breathingMixer.getSensors()) {
+            sensor.getLink().requestConnectionPriority(priority);
+        }
+    }
 
-        int outputRange = 360;
-        int hueValue = 0;
+    /**
+     * Makes connectBracelet and connectMantra stand up a SimulatedBracelet and a SimulatedMantra instead of
+     * scanning, for demos and stress runs without the hardware. Takes effect on the next connect.
+     */
+    public void setSimulatedPeripherals(boolean simulated) {
+        peripheralManager.setLinkFactory(simulated ? simulatedLinkFactory : null);
+    }
 
-        if (value == 0) {
-            Log.d(TAG, "Attempted to map null sensor value to color.");
-            return 0;
+    /**
+     * Stands up the simulated peripherals, each at its own address
+     */
+    private final PeripheralManager.LinkFactory simulatedLinkFactory = new PeripheralManager.LinkFactory() {
+        @Override
+        public PeripheralLink createLink(PeripheralProfile profile, int index) {
+            if (profile == BRACELET) {
+                return new SimulatedBracelet(getSimulationExecutor(), profile.getName(),
+                        String.format(SIMULATED_BRACELET_ADDRESS, index + 1));
+            }
+            return new SimulatedMantra(getSimulationExecutor(), profile.getName(),
+                    String.format(SIMULATED_MANTRA_ADDRESS, index + 1));
         }
+    };
+
+    /**
+     * Latest Bracelet link, a SimulatedBracelet in simulation mode, null before the first connect.
+     * See getBraceletPool for all of them.
+     */
+    public PeripheralLink getBraceletLink() {
+        return braceletLink;
+    }
+
+    /**
+     * Latest Mantra link, a SimulatedMantra in simulation mode, null before the first connect.
+     * See getBreathingMixer for all of them.
+     */
+    public PeripheralLink getMantraLink() {
+        return mantraLink;
+    }
 
-        // Avoid dividing by 0
-        if (inputRange != 0) hueValue = (filteredSensorValue - minSensorValue) * outputRange / inputRange + 0;
+    /**
+     * The connected Mantras and their signal pipelines
+     */
+    public BreathingMixer getBreathingMixer() {
+        return breathingMixer;
+    }
 
-        Log.d(TAG, "hue value:" +  hueValue);
-        Log.d(TAG, "hue value float:" +  (float)hueValue);
+    private synchronized ScheduledExecutorService getSimulationExecutor() {
+        if (simulationExecutor == null) {
+            simulationExecutor = Executors.newSingleThreadScheduledExecutor();
+        }
+        return simulationExecutor;
+    }
 
-        return  Color.HSVToColor(new float[] { (float)hueValue, 1.0f, 1.0f });
+    /**
+     * Changes the rate at which breathing colors are sent to the Bracelet, in frames per second.
+     * 20 to 50 works well, the Bracelet link cannot take much more.
+     */
+    public void setRenderFrameRate(final int framesPerSecond) {
+        if (framesPerSecond <= 0 || framesPerSecond > 1000) {
+            throw new IllegalArgumentException("Frame rate out of range: " + framesPerSecond);
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                breathingMixer.setFrameRate(framesPerSecond);
+            }
+        });
     }
 
     /**
@@ -477,151 +926,173 @@ public class BraceletService extends IntentService {
     }
 
 
-    // Might be able to just implement a difference callback for each peripheral
     /**
-     * Handles the scanning of Mantra devices.
+     * Gives each Mantra its own sensor channel in the breathingMixer
      */
-    private BluetoothAdapter.LeScanCallback handleMantraScan = new BluetoothAdapter.LeScanCallback() {
+    private final PeripheralManager.Client mantraClient = new PeripheralManager.Client() {
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            if(device.getName() == null) {
-                // return early if device is null
-                return;
+        public PeripheralLink.Listener onLinkCreated(PeripheralProfile profile, PeripheralLink link) {
+            //Got a Mantra
+            mantraLink = link;
+            return new MantraLinkListener(breathingMixer.addSensor(link));
+        }
+
+        @Override
+        public void onLinkRemoved(PeripheralProfile profile, PeripheralLink link) {
+            // A Mantra found again starts over with a fresh calibration
+            for (SensorChannel sensor : breathingMixer.getSensors()) {
+                if (sensor.getLink() == link) {
+                    breathingMixer.removeSensor(sensor);
+                }
             }
+            if (link == mantraLink) {
+                mantraLink = null;
+            }
+        }
 
-            if(device.getName().compareToIgnoreCase("Mantra") == 0){
-                Log.d(TAG, "Found Mantra device: " + device.getName());
-                //Got a Mantra
-                mantraConnected = true;
-
-                bluetoothAdapter.stopLeScan(handleMantraScan);
-
-                Log.d(TAG, "Found Mantra trying to connect to address: " + device.getAddress());
-                mantraBluetoothGatt = device.connectGatt(BraceletService.this, true, new BluetoothGattCallback() {
-
-                    @Override
-                    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                        if (newState == BluetoothProfile.STATE_CONNECTED) {
-                            Log.d(TAG, "Connected to Mantra, attempting to start service discovery:" +
-                                    mantraBluetoothGatt.discoverServices());
-                            activity.braceletConnectionStateChanged(BluetoothProfile.STATE_CONNECTED);
-
-                        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                            Log.d(TAG, "Disconnected from Mantra.");
-                            activity.braceletConnectionStateChanged(BluetoothProfile.STATE_DISCONNECTED);
-                        }
-                    }
-
-                    @Override
-                    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-                        // 0x11 = unint8 format
-                        Log.d(TAG, "Characteristic changed: " + characteristic.getIntValue(0x11, 0));
-
-                        sendBreathingColor(characteristic.getIntValue(0x11, 0));
-                    }
-
-                    @Override
-                    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-
-                        // Set the get notifications set up if device is Mantra
-                        if (device.getName().compareToIgnoreCase("Mantra") == 0) {
-                            BluetoothGattCharacteristic receiveCharacteristic =
-                                    gatt.getService(UUID.fromString(serviceUUID)).getCharacteristic(UUID.fromString(receiveCharacteristicUUID));
-                            if (receiveCharacteristic != null) {
-                                BluetoothGattDescriptor receiveConfigDescriptor =
-                                        receiveCharacteristic.getDescriptor(UUID.fromString(clientConfigCharacteristicUUID));
-                                if (receiveConfigDescriptor != null) {
-                                    gatt.setCharacteristicNotification(receiveCharacteristic, true);
-
-                                    receiveConfigDescriptor.setValue(
-                                            BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                                    gatt.writeDescriptor(receiveConfigDescriptor);
-                                } else {
-                                    Log.e(TAG, "Mantra receive config descriptor not found!");
-
-                                }
-
-                            } else {
-                                Log.e(TAG, "Mantra receive characteristic not found!");
-                            }
-                        }
-                        if (status == BluetoothGatt.GATT_SUCCESS) {
-                            //Once the services have been discovered we can connect to the one
-                            //we know is used for receiving the RGB values
-                            BluetoothGattService serv = mantraBluetoothGatt.getService(UUID.fromString(serviceUUID));
-
-                            //Don't set the send characteristic when Mantra connects, we have nothing to send it, for now
-                            //sendCharacteristic = serv.getCharacteristic(UUID.fromString(sendCharacteristicUUID));
-
-                            //Now we assume that the device is fully connected
-                            activity.mantraConnectionStateChanged(BluetoothProfile.STATE_CONNECTED);
-
-                        }
-                    }
-                });
+        @Override
+        public void onScanTimeout(PeripheralProfile profile) {
+            if (mantraConnection.transition(ConnectionStateMachine.STATE_SCANNING, ConnectionStateMachine.STATE_IDLE)) {
+                Log.d(TAG, "Mantra scanning timed out, stopping the scan");
             }
         }
+
+        @Override
+        public void onScanRestarted(PeripheralProfile profile) {
+            onPeripheralScanRestarted(mantraConnection);
+        }
     };
 
     /**
-     * Handles the scanning of Bracelet devices.
+     * Feeds the notifications of a Mantra to its own sensor channel
      */
-    private BluetoothAdapter.LeScanCallback handleBraceletScan = new BluetoothAdapter.LeScanCallback() {
+    private class MantraLinkListener implements PeripheralLink.Listener {
+
+        private final SensorChannel sensor;
+
+        MantraLinkListener(SensorChannel sensor) {
+            this.sensor = sensor;
+        }
+
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            if(device.getName() == null) {
-                // return early if device is null
+        public void onConnected(PeripheralLink link) {
+            onPeripheralConnected(mantraConnection, link);
+        }
+
+        @Override
+        public void onReady(PeripheralLink link) {
+            if (!onPeripheralReady(mantraConnection, link)) {
                 return;
             }
-            // Do I need to copy this whole block per peripheral? Or is there a more elegant way of doing what I want
-            if(device.getName().compareToIgnoreCase("Bracelet") == 0){
-
-                Log.d(TAG, "Found Bracelet device: " + device.getName());
-
-                //Got a Bracelet
-                braceletConnected = true;
-
-                bluetoothAdapter.stopLeScan(handleBraceletScan);
-
-                Log.d(TAG, "Found Bracelet trying to connect to " + device.getAddress());
-                braceletBluetoothGatt = device.connectGatt(BraceletService.this, true, new BluetoothGattCallback() {
-
-                    @Override
-                    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                        if (newState == BluetoothProfile.STATE_CONNECTED) {
-                            Log.d(TAG, "Connected to Bracelet, attempting to start service discovery:" +
-                                    braceletBluetoothGatt.discoverServices());
-                        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                            Log.d(TAG, "Disconnected from Bracelet.");
-                        }
-                    }
-
-                    @Override
-                    public void onReadRemoteRssi (BluetoothGatt gatt, int rssi, int status) {
-                        Log.d(TAG, "Bracelet reported RSSI:" + rssi + " and status: " + status);
-
-                    }
-
-                    @Override
-                    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-                        Log.d(TAG, "Characteristic Changed on GATT:" + gatt + " Characteristic: " + characteristic);
-                    }
-
-                    @Override
-                    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-
-                        if (status == BluetoothGatt.GATT_SUCCESS) {
-                            //Once the services have been discovered we can connect to the one
-                            //we know is used for receiving the RGB values
-                            BluetoothGattService serv = braceletBluetoothGatt.getService(UUID.fromString(serviceUUID));
-                            braceletSendCharacteristic = serv.getCharacteristic(UUID.fromString(sendCharacteristicUUID));
-
-                            //Now we assume that the device is fully connected
-                            activity.braceletConnectionStateChanged(BluetoothProfile.STATE_CONNECTED);
-                        }
-                    }
-                });
+            Log.d(TAG, "Connected to Mantra " + link.getAddress());
+            sensor.onConnected();
+        }
+
+        @Override
+        public void onDisconnected(PeripheralLink link) {
+            Log.d(TAG, "Disconnected from Mantra " + link.getAddress() + ".");
+            onPeripheralDisconnected(mantraConnection, MANTRA);
+        }
+
+        @Override
+        public void onNotification(PeripheralLink link, byte[] value) {
+            enqueueSensorSamples(sensor, value);
+        }
+
+        @Override
+        public void onWriteComplete(PeripheralLink link, int status) {
+            // Nothing is written to Mantra
+        }
+    }
+
+    /**
+     * Gives each Bracelet its own write scheduler in the braceletPool
+     */
+    private final PeripheralManager.Client braceletClient = new PeripheralManager.Client() {
+        @Override
+        public PeripheralLink.Listener onLinkCreated(PeripheralProfile profile, final PeripheralLink link) {
+            //Got a Bracelet
+            ColorWriteScheduler scheduler = new ColorWriteScheduler(new ColorWriteScheduler.FrameWriter() {
+                @Override
+                public boolean writeFrame(byte[] frame, long originNanos) {
+                    pipelineLatency.record(PipelineLatency.STAGE_WRITE_STARTED, originNanos,
+                            SystemClock.elapsedRealtimeNanos());
+                    return link.write(frame);
+                }
+            }, HuePalette.FRAME_SIZE, WRITE_RETRY_DELAY);
+            scheduler.setWriteListener(new ColorWriteScheduler.WriteListener() {
+                @Override
+                public void onFrameWritten(byte[] frame, long originNanos, long nowMillis) {
+                    breathingMixer.onFrameAcknowledged(braceletPool.getGroup(link, breathingMixer.getGroupCount()),
+                            frame, nowMillis);
+                    pipelineLatency.record(PipelineLatency.STAGE_WRITE_ACKNOWLEDGED, originNanos,
+                            SystemClock.elapsedRealtimeNanos());
+                }
+            });
+            braceletPool.add(link, scheduler);
+
+            braceletLink = link;
+            return braceletLinkListener;
+        }
+
+        @Override
+        public void onLinkRemoved(PeripheralProfile profile, PeripheralLink link) {
+            braceletPool.remove(link);
+            if (link == braceletLink) {
+                braceletLink = null;
+            }
+        }
+
+        @Override
+        public void onScanTimeout(PeripheralProfile profile) {
+            // The activity is told by connectionObserver, on the UI thread
+            if (braceletConnection.transition(ConnectionStateMachine.STATE_SCANNING, ConnectionStateMachine.STATE_IDLE)) {
+                Log.d(TAG, "Bracelet scanning timed out, stopping the scan");
+            }
+        }
+
+        @Override
+        public void onScanRestarted(PeripheralProfile profile) {
+            onPeripheralScanRestarted(braceletConnection);
+        }
+    };
+
+    private final PeripheralLink.Listener braceletLinkListener = new PeripheralLink.Listener() {
+        @Override
+        public void onConnected(PeripheralLink link) {
+            onPeripheralConnected(braceletConnection, link);
+        }
+
+        @Override
+        public void onReady(PeripheralLink link) {
+            if (!onPeripheralReady(braceletConnection, link)) {
+                return;
             }
+            Log.d(TAG, "Connected to Bracelet " + link.getAddress());
+            braceletPool.onReady(link);
+            // The Bracelet just joined must get the next frame even if it looks like the one shown
+            breathingMixer.resetDeduplicators();
+        }
+
+        @Override
+        public void onDisconnected(PeripheralLink link) {
+            Log.d(TAG, "Disconnected from Bracelet " + link.getAddress() + ".");
+            braceletPool.onDisconnected(link);
+            breathingMixer.resetDeduplicators();
+            onPeripheralDisconnected(braceletConnection, BRACELET);
+        }
+
+        @Override
+        public void onNotification(PeripheralLink link, byte[] value) {
+            TraceLog.record(TraceLog.EVENT_BRACELET_NOTIFICATION, value != null ? value.length : 0, 0);
+        }
+
+        @Override
+        public void onWriteComplete(PeripheralLink link, int status) {
+            // Hands the result of the color writes back to the write scheduler of that Bracelet
+            long now = SystemClock.uptimeMillis();
+            braceletPool.onWriteComplete(link, status == PeripheralLink.STATUS_SUCCESS, now);
+            schedulePendingColorWrites(braceletPool.poll(now));
         }
     };
 }
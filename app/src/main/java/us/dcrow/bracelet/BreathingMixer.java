@@ -0,0 +1,406 @@
+package us.dcrow.bracelet;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs several breathing sensors, each through its own SensorChannel, and merges them with a SensorAggregator
+ * into one BreathingRenderer per group of Bracelets.
+ * Every sample goes through its own sensor's pipeline once, the aggregator runs once per batch, so the
+ * processing cost grows linearly with the number of sensors.
+ *
+ * Sensors may be added and removed from any thread. process, renderTick and the pipeline settings belong to
+ * the processing thread, the caller owns the clock and the scheduling like for BreathingRenderer.
+ */
+public class BreathingMixer {
+
+    /**
+     * Receives the frames worth sending to the Bracelets of a group
+     */
+    public interface FrameSink {
+        /**
+         * The frame is only valid during the call, see BreathingRenderer.FrameSink
+         */
+        void onFrame(int group, byte[] frame, long originNanos);
+    }
+
+    /**
+     * Returned by renderTick once every render loop stopped
+     */
+    public static final long STOPPED = BreathingRenderer.STOPPED;
+
+    private static final SensorChannel[] NO_SENSORS = new SensorChannel[0];
+
+    private final FrameSink sink;
+
+    /**
+     * Records the STAGE_FILTERED latency once the samples of a drain are filtered, null if not measured
+     */
+    private final PipelineLatency pipelineLatency;
+
+    /**
+     * Size of each sensor's sample ring
+     */
+    private final int bufferSize;
+
+    private volatile SensorChannel[] sensors = NO_SENSORS;
+
+    private volatile SensorAggregator aggregator = new AverageAggregator();
+
+    /**
+     * Per group, grown on the processing thread as groups appear. The deduplicators are read from the
+     * threads acknowledging the writes as well.
+     */
+    private volatile BreathingRenderer[] renderers = new BreathingRenderer[0];
+    private volatile FrameDeduplicator[] deduplicators = new FrameDeduplicator[0];
+    private long[] nextTicks = new long[0];
+
+    private volatile int groupCount = 1;
+
+    /**
+     * Scratch state of process, per sensor
+     */
+    private int[] hues = new int[0];
+    private boolean[] updated = new boolean[0];
+
+    /**
+     * Scratch state of process, origin of every sample filtered by the current drain
+     */
+    private long[] filteredOrigins = new long[0];
+
+    /**
+     * Settings applied to the sensors and groups added later, guarded by this
+     */
+    private int calibrationWindow = BreathingPipeline.CALIBRATION_WINDOW;
+    private int filterWidth = BreathingPipeline.FILTER_WIDTH;
+    private HuePalette huePalette;
+    private volatile int brightness;
+    private int frameRate = BreathingRenderer.DEFAULT_FRAME_RATE;
+    private volatile int dedupThreshold = FrameDeduplicator.DEFAULT_THRESHOLD;
+
+    public BreathingMixer(int bufferSize, int brightness, PipelineLatency pipelineLatency, FrameSink sink) {
+        this.bufferSize = bufferSize;
+        this.brightness = brightness;
+        this.pipelineLatency = pipelineLatency;
+        this.sink = sink;
+        ensureGroups(1);
+    }
+
+    /**
+     * Adds a sensor with a fresh calibration, the last one in connection order.
+     */
+    public synchronized SensorChannel addSensor(PeripheralLink link) {
+        SensorChannel sensor = new SensorChannel(link, bufferSize);
+        configure(sensor.getPipeline());
+
+        SensorChannel[] current = sensors;
+        SensorChannel[] updatedSensors = Arrays.copyOf(current, current.length + 1);
+        updatedSensors[current.length] = sensor;
+        sensors = updatedSensors;
+        return sensor;
+    }
+
+    /**
+     * Removes a sensor, the sensors after it move up one place. Returns false if it was not there.
+     */
+    public synchronized boolean removeSensor(SensorChannel sensor) {
+        SensorChannel[] current = sensors;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == sensor) {
+                SensorChannel[] updatedSensors = new SensorChannel[current.length - 1];
+                System.arraycopy(current, 0, updatedSensors, 0, i);
+                System.arraycopy(current, i + 1, updatedSensors, i, current.length - i - 1);
+                sensors = updatedSensors;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sensors in connection order
+     */
+    public List<SensorChannel> getSensors() {
+        return Arrays.asList(sensors.clone());
+    }
+
+    public int getSensorCount() {
+        return sensors.length;
+    }
+
+    /**
+     * Sensor by index in connection order, null if there is no such sensor
+     */
+    public SensorChannel getSensor(int index) {
+        SensorChannel[] current = sensors;
+        return index < current.length ? current[index] : null;
+    }
+
+    /**
+     * Replaces the way sensors are merged, AverageAggregator by default. Takes effect with the next samples.
+     */
+    public void setAggregator(SensorAggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    public SensorAggregator getAggregator() {
+        return aggregator;
+    }
+
+    /**
+     * Number of Bracelet groups, as of the last process
+     */
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Runs the queued samples of every sensor through its pipeline, then hands the aggregated hues to the
+     * renderers. Returns true if a render loop was idle and just started, renderTick is then due right away.
+     */
+    public boolean process(long nowMillis) {
+        SensorChannel[] current = sensors;
+        int sensorCount = current.length;
+        if (hues.length < sensorCount) {
+            hues = new int[sensorCount];
+            updated = new boolean[sensorCount];
+        }
+
+        long origin = PipelineLatency.NO_ORIGIN;
+        int filteredCount = 0;
+        boolean anyUpdated = false;
+        for (int i = 0; i < sensorCount; i++) {
+            SensorChannel sensor = current[i];
+            SampleRingBuffer samples = sensor.getSampleBuffer();
+            BreathingPipeline pipeline = sensor.getPipeline();
+
+            boolean sensorUpdated = false;
+            while (!samples.isEmpty()) {
+                long sampleOrigin = samples.peekTimestamp();
+                sensor.hue = pipeline.mapSensorValueToHue(samples.poll());
+                if (pipelineLatency != null) {
+                    if (filteredCount == filteredOrigins.length) {
+                        filteredOrigins = Arrays.copyOf(filteredOrigins, Math.max(bufferSize, 2 * filteredCount));
+                    }
+                    filteredOrigins[filteredCount++] = sampleOrigin;
+                }
+                if (origin == PipelineLatency.NO_ORIGIN || sampleOrigin < origin) {
+                    origin = sampleOrigin;
+                }
+                sensorUpdated = true;
+            }
+            hues[i] = sensor.hue;
+            updated[i] = sensorUpdated;
+            anyUpdated |= sensorUpdated;
+        }
+        if (filteredCount > 0) {
+            // Once the whole drain is filtered, the samples waited for the ones before them
+            long filteredNanos = pipelineLatency.now();
+            for (int i = 0; i < filteredCount; i++) {
+                pipelineLatency.record(PipelineLatency.STAGE_FILTERED, filteredOrigins[i], filteredNanos);
+            }
+        }
+        if (!anyUpdated) {
+            return false;
+        }
+
+        SensorAggregator aggregator = this.aggregator;
+        int groups = aggregator.getGroupCount(sensorCount);
+        if (groups > renderers.length) {
+            ensureGroups(groups);
+        }
+        groupCount = groups;
+
+        boolean started = false;
+        BreathingRenderer[] currentRenderers = renderers;
+        for (int group = 0; group < groups; group++) {
+            int hue = aggregator.aggregate(hues, updated, sensorCount, group);
+            if (hue != SensorAggregator.UNCHANGED && currentRenderers[group].onSamplesProcessed(hue, origin, nowMillis)) {
+                nextTicks[group] = nowMillis;
+                started = true;
+            }
+        }
+        return started;
+    }
+
+    /**
+     * Renders the frames due of every running group. Returns the time of the next tick, or STOPPED
+     * once every sensor went quiet.
+     */
+    public long renderTick(long nowMillis) {
+        BreathingRenderer[] currentRenderers = renderers;
+        long next = STOPPED;
+        for (int group = 0; group < currentRenderers.length; group++) {
+            BreathingRenderer renderer = currentRenderers[group];
+            if (!renderer.isRunning()) {
+                continue;
+            }
+            if (nextTicks[group] <= nowMillis) {
+                nextTicks[group] = renderer.renderTick(nowMillis);
+                if (nextTicks[group] == STOPPED) {
+                    continue;
+                }
+            }
+            if (next == STOPPED || nextTicks[group] < next) {
+                next = nextTicks[group];
+            }
+        }
+        return next;
+    }
+
+    public boolean isRunning() {
+        for (BreathingRenderer renderer : renderers) {
+            if (renderer.isRunning()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Brightness of the breathing frames, may be called from any thread
+     */
+    public void setBrightness(int brightness) {
+        this.brightness = brightness;
+        for (BreathingRenderer renderer : renderers) {
+            renderer.setBrightness(brightness);
+        }
+    }
+
+    public synchronized void setFrameRate(int framesPerSecond) {
+        if (framesPerSecond <= 0 || framesPerSecond > 1000) {
+            throw new IllegalArgumentException("Frame rate out of range: " + framesPerSecond);
+        }
+        for (BreathingRenderer renderer : renderers) {
+            renderer.setFrameRate(framesPerSecond);
+        }
+        frameRate = framesPerSecond;
+    }
+
+    /**
+     * Changes how different a breathing color must be from the one shown to be sent, may be called from any thread
+     */
+    public void setDedupThreshold(int threshold) {
+        for (FrameDeduplicator deduplicator : deduplicators) {
+            deduplicator.setThreshold(threshold);
+        }
+        dedupThreshold = threshold;
+    }
+
+    /**
+     * To be called when a Bracelet of the group acknowledged a frame, from any thread
+     */
+    public void onFrameAcknowledged(int group, byte[] frame, long nowMillis) {
+        FrameDeduplicator[] current = deduplicators;
+        if (group < current.length) {
+            current[group].onFrameAcknowledged(frame, nowMillis);
+        }
+    }
+
+    /**
+     * Makes every group send its next frame even if it looks the same as the one shown, e.g. when a
+     * Bracelet joins or comes back
+     */
+    public void resetDeduplicators() {
+        for (FrameDeduplicator deduplicator : deduplicators) {
+            deduplicator.reset();
+        }
+    }
+
+    /**
+     * Breathing frames skipped because they looked the same as the one shown, all groups together
+     */
+    public long getSavedWrites() {
+        long saved = 0;
+        for (FrameDeduplicator deduplicator : deduplicators) {
+            saved += deduplicator.getSavedWrites();
+        }
+        return saved;
+    }
+
+    /**
+     * Changes the number of samples used for ranging every sensor, they are recalibrated from scratch.
+     */
+    public synchronized void setCalibrationWindow(int windowSize) {
+        for (SensorChannel sensor : sensors) {
+            sensor.getPipeline().setCalibrationWindow(windowSize);
+        }
+        calibrationWindow = windowSize;
+    }
+
+    /**
+     * Changes the number of samples averaged into the filtered value of every sensor.
+     */
+    public synchronized void setFilterWidth(int width) {
+        for (SensorChannel sensor : sensors) {
+            sensor.getPipeline().setFilterWidth(width);
+        }
+        filterWidth = width;
+    }
+
+    /**
+     * Replaces the smoothing of one sensor, by index in connection order. The filter keeps state,
+     * so each sensor needs its own; sensors added later get the default moving average.
+     */
+    public void setSignalFilter(int sensor, SignalFilter filter) {
+        SensorChannel[] current = sensors;
+        if (sensor < current.length) {
+            current[sensor].getPipeline().setSignalFilter(filter);
+        }
+    }
+
+    /**
+     * Replaces the colors used for the breathing hues of every group.
+     */
+    public synchronized void setHuePalette(HuePalette palette) {
+        for (SensorChannel sensor : sensors) {
+            sensor.getPipeline().setHuePalette(palette);
+        }
+        for (BreathingRenderer renderer : renderers) {
+            renderer.getPipeline().setHuePalette(palette);
+        }
+        huePalette = palette;
+    }
+
+    private void configure(BreathingPipeline pipeline) {
+        if (calibrationWindow != BreathingPipeline.CALIBRATION_WINDOW) {
+            pipeline.setCalibrationWindow(calibrationWindow);
+        }
+        if (filterWidth != BreathingPipeline.FILTER_WIDTH) {
+            pipeline.setFilterWidth(filterWidth);
+        }
+        if (huePalette != null) {
+            pipeline.setHuePalette(huePalette);
+        }
+    }
+
+    /**
+     * Creates the renderers of the groups that showed up, allocates only when the group count grows.
+     */
+    private synchronized void ensureGroups(int groups) {
+        int existing = renderers.length;
+        if (groups <= existing) {
+            return;
+        }
+
+        FrameDeduplicator[] grownDeduplicators = Arrays.copyOf(deduplicators, groups);
+        BreathingRenderer[] grownRenderers = Arrays.copyOf(renderers, groups);
+        for (int group = existing; group < groups; group++) {
+            final int rendererGroup = group;
+            BreathingPipeline colors = new BreathingPipeline();
+            configure(colors);
+            grownDeduplicators[group] = new FrameDeduplicator(dedupThreshold, FrameDeduplicator.DEFAULT_KEEP_ALIVE);
+            grownRenderers[group] = new BreathingRenderer(colors, grownDeduplicators[group], brightness,
+                    new BreathingRenderer.FrameSink() {
+                        @Override
+                        public void onFrame(byte[] frame, long originNanos) {
+                            sink.onFrame(rendererGroup, frame, originNanos);
+                        }
+                    });
+            grownRenderers[group].setFrameRate(frameRate);
+        }
+        nextTicks = Arrays.copyOf(nextTicks, groups);
+        deduplicators = grownDeduplicators;
+        renderers = grownRenderers;
+    }
+}
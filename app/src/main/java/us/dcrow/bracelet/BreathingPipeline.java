@@ -0,0 +1,157 @@
+package us.dcrow.bracelet;
+
+/**
+ * Turns breathing sensor samples into Bracelet colors: ranging, filtering and hue mapping.
+ * Holds all the mutable signal state. It is not thread safe, a pipeline is owned by a single thread
+ * (the service's processing thread) and only ever touched from it.
+ */
+public class BreathingPipeline {
+
+    /**
+     * Number of samples used for ranging the breathing sensor
+     */
+    public static final int CALIBRATION_WINDOW = 400;
+
+    /**
+     * Number of samples averaged into the filtered sensor value
+     */
+    public static final int FILTER_WIDTH = 15;
+
+    /**
+     * Hue returned for a null sensor value, shown as black
+     */
+    public static final int NO_HUE = -1;
+
+    /**
+     * Max calibrated value for the breathing sensor
+     */
+    private int maxSensorValue;
+
+    /**
+     * Max calibrated value for the breathing sensor
+     */
+    private int minSensorValue;
+
+    /**
+     * Filtered sensor value
+     */
+    private int filteredSensorValue;
+
+    /**
+     * Sliding min/max over the last CALIBRATION_WINDOW sensor samples
+     */
+    private SensorCalibrator sensorCalibrator = new SensorCalibrator(CALIBRATION_WINDOW);
+
+    /**
+     * Smoothing applied to the sensor samples, a moving average over the last FILTER_WIDTH samples by default
+     */
+    private SignalFilter signalFilter = new MovingAverageFilter(FILTER_WIDTH);
+
+    /**
+     * Colors used for the breathing hues
+     */
+    private HuePalette huePalette = HuePalette.rainbow();
+
+    /**
+     * Changes the number of samples used for ranging the breathing sensor.
+     * The range is recalibrated from scratch.
+     */
+    public void setCalibrationWindow(int windowSize) {
+        sensorCalibrator = new SensorCalibrator(windowSize);
+    }
+
+    /**
+     * Changes the number of samples averaged into the filtered sensor value.
+     */
+    public void setFilterWidth(int width) {
+        signalFilter = new MovingAverageFilter(width);
+    }
+
+    /**
+     * Replaces the smoothing applied to the sensor samples.
+     */
+    public void setSignalFilter(SignalFilter filter) {
+        filter.reset();
+        signalFilter = filter;
+    }
+
+    /**
+     * Replaces the colors used for the breathing hues.
+     */
+    public void setHuePalette(HuePalette palette) {
+        huePalette = palette;
+    }
+
+    public int getMaxSensorValue() {
+        return maxSensorValue;
+    }
+
+    public int getMinSensorValue() {
+        return minSensorValue;
+    }
+
+    public int getFilteredSensorValue() {
+        return filteredSensorValue;
+    }
+
+    /**
+     * Ranges the sensor data (get the maximum and minimum values)
+     */
+    public void rangeSensorValue (int sensorValue) {
+
+        sensorCalibrator.add(sensorValue);
+
+        filteredSensorValue = signalFilter.filter(sensorValue);
+
+        // Only trust the range once a full window has been seen
+        if (sensorCalibrator.isFull()) {
+            maxSensorValue = sensorCalibrator.getMax();
+            minSensorValue = sensorCalibrator.getMin();
+        }
+
+        TraceLog.record(TraceLog.EVENT_RANGED, maxSensorValue, minSensorValue);
+    }
+
+    /**
+     * Color mapping helper, maps the sensor value to a hue and looks it up in the palette
+     */
+    public int mapSensorValueToColor(int value) {
+        return colorForHue(mapSensorValueToHue(value));
+    }
+
+    /**
+     * Packed 0xRRGGBB color of a hue, black for NO_HUE
+     */
+    public int colorForHue(int hue) {
+        return hue == NO_HUE ? 0 : huePalette.color(hue);
+    }
+
+    /**
+     * Hue mapping helper, outputs a value between 0 and 360 used for converting to color, NO_HUE for a null value
+     */
+    public int mapSensorValueToHue(int value) {
+
+        // populate filterSensorValue
+        rangeSensorValue(value);
+
+        int inputRange = maxSensorValue - minSensorValue;
+
+        int outputRange = 360;
+        int hueValue = 0;
+
+        if (value == 0) {
+            TraceLog.record(TraceLog.EVENT_NULL_SAMPLE, 0, 0);
+            return NO_HUE;
+        }
+
+        // Avoid dividing by 0
+        if (inputRange != 0) hueValue = (filteredSensorValue - minSensorValue) * outputRange / inputRange + 0;
+
+        // Filters may overshoot the calibrated range
+        hueValue = Math.max(0, Math.min(outputRange, hueValue));
+
+        TraceLog.record(TraceLog.EVENT_HUE, hueValue, filteredSensorValue);
+
+        return hueValue;
+    }
+}
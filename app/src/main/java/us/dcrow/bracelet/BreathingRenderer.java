@@ -0,0 +1,177 @@
+package us.dcrow.bracelet;
+
+/**
+ * Turns the hues coming out of a BreathingPipeline into Bracelet frames at a fixed frame rate.
+ * Keeps the render loop state; the caller owns the clock and the scheduling, so the same logic runs
+ * on the service's processing thread and in a ReplayEngine on a plain JVM.
+ * Not thread safe except for setBrightness, a renderer is owned by a single thread.
+ */
+public class BreathingRenderer {
+
+    /**
+     * Receives the frames worth sending to the Bracelet
+     */
+    public interface FrameSink {
+        /**
+         * The frame is only valid during the call. originNanos is the arrival time of the oldest sample
+         * it shows for the first time, PipelineLatency.NO_ORIGIN if none.
+         */
+        void onFrame(byte[] frame, long originNanos);
+    }
+
+    /**
+     * Default rate at which breathing colors are sent to the Bracelet, in frames per second
+     */
+    public static final int DEFAULT_FRAME_RATE = 30;
+
+    /**
+     * The render loop stops when no sensor sample came in for this long
+     */
+    public static final long IDLE_TIMEOUT = 1000;
+
+    /**
+     * Longest transition between two hues, in milliseconds
+     */
+    public static final long MAX_HUE_TRANSITION = 500;
+
+    /**
+     * Returned by renderTick once the render loop stopped
+     */
+    public static final long STOPPED = -1;
+
+    private final BreathingPipeline pipeline;
+
+    /**
+     * Ramps between the hues coming out of the pipeline
+     */
+    private final HueInterpolator hueInterpolator = new HueInterpolator(MAX_HUE_TRANSITION);
+
+    private final FrameDeduplicator frameDeduplicator;
+
+    private final FrameSink sink;
+
+    /**
+     * Reused buffer for the breathing frames
+     */
+    private final byte[] frame = new byte[HuePalette.FRAME_SIZE];
+
+    private volatile int brightness;
+
+    private long framePeriod = 1000 / DEFAULT_FRAME_RATE;
+    private boolean running;
+    private long nextTick;
+    private long lastSampleTime;
+
+    /**
+     * Arrival time of the oldest sample not shown yet, PipelineLatency.NO_ORIGIN if none
+     */
+    private long origin = PipelineLatency.NO_ORIGIN;
+
+    public BreathingRenderer(BreathingPipeline pipeline, FrameDeduplicator frameDeduplicator, int brightness,
+                             FrameSink sink) {
+        this.pipeline = pipeline;
+        this.frameDeduplicator = frameDeduplicator;
+        this.brightness = brightness;
+        this.sink = sink;
+    }
+
+    public BreathingPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Brightness of the breathing frames, may be called from any thread
+     */
+    public void setBrightness(int brightness) {
+        this.brightness = brightness;
+    }
+
+    public void setFrameRate(int framesPerSecond) {
+        if (framesPerSecond <= 0 || framesPerSecond > 1000) {
+            throw new IllegalArgumentException("Frame rate out of range: " + framesPerSecond);
+        }
+        framePeriod = 1000 / framesPerSecond;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Runs a sensor sample through the pipeline and returns its hue.
+     */
+    public int processSample(int value, long originNanos) {
+        int hue = pipeline.mapSensorValueToHue(value);
+        if (origin == PipelineLatency.NO_ORIGIN) {
+            origin = originNanos;
+        }
+        return hue;
+    }
+
+    /**
+     * To be called after a batch of samples went through processSample, with the hue of the newest one.
+     * Returns true if the render loop was idle and just started, renderTick is then due right away.
+     */
+    public boolean onSamplesProcessed(int hue, long nowMillis) {
+        return onSamplesProcessed(hue, PipelineLatency.NO_ORIGIN, nowMillis);
+    }
+
+    /**
+     * Same as onSamplesProcessed(hue, nowMillis), for a hue computed outside of this renderer's pipeline,
+     * e.g. merged from several sensors. originNanos is the arrival time of the oldest sample behind it.
+     */
+    public boolean onSamplesProcessed(int hue, long originNanos, long nowMillis) {
+        if (origin == PipelineLatency.NO_ORIGIN) {
+            origin = originNanos;
+        }
+        hueInterpolator.update(hue, nowMillis);
+        lastSampleTime = nowMillis;
+
+        if (running) {
+            return false;
+        }
+        running = true;
+        nextTick = nowMillis;
+        return true;
+    }
+
+    /**
+     * Renders one frame. Returns the time of the next tick, fixed rate, skipping the ticks we were too late for,
+     * or STOPPED if the sensor went quiet. The last frame then stays on the Bracelet.
+     */
+    public long renderTick(long nowMillis) {
+        if (nowMillis - lastSampleTime > IDLE_TIMEOUT) {
+            running = false;
+            hueInterpolator.reset();
+            origin = PipelineLatency.NO_ORIGIN;
+            return STOPPED;
+        }
+
+        renderHue(hueInterpolator.hueAt(nowMillis), nowMillis);
+
+        nextTick += framePeriod;
+        if (nextTick <= nowMillis) {
+            nextTick = nowMillis + framePeriod;
+        }
+        return nextTick;
+    }
+
+    /**
+     * Encodes a hue with the current brightness and hands it to the sink, unless it looks the same as the frame shown.
+     */
+    private void renderHue(int hue, long nowMillis) {
+        int color = pipeline.colorForHue(hue);
+        HuePalette.writeColorFrame(color, brightness, frame);
+
+        // The first frame rendered after a sample is the one showing it
+        long frameOrigin = origin;
+        origin = PipelineLatency.NO_ORIGIN;
+
+        if (!frameDeduplicator.shouldSend(frame, nowMillis)) {
+            return;
+        }
+
+        TraceLog.record(TraceLog.EVENT_FRAME_SENT, color, brightness);
+        sink.onFrame(frame, frameOrigin);
+    }
+}
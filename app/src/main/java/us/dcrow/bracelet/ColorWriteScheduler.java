@@ -0,0 +1,299 @@
+package us.dcrow.bracelet;
+
+/**
+ * Latest-wins write queue for a single characteristic.
+ * Android only accepts one outstanding write per connection and silently drops the others,
+ * so frames are held back until the previous write completes. Only the newest pending frame is kept,
+ * older ones are coalesced away. A write is never overtaken, the link reports the completion of every write
+ * it started (GattOperationQueue times them out), and the frame being written stays untouched until then.
+ * The writer and the listener are called without holding the scheduler lock, they may call back into the
+ * scheduler or into other schedulers.
+ */
+public class ColorWriteScheduler {
+
+    /**
+     * Performs the actual characteristic write
+     */
+    public interface FrameWriter {
+        /**
+         * Starts writing the frame, returns false if the stack refused the write.
+         * The frame buffer is left untouched until the write completes.
+         * originNanos is the origin given to submit.
+         */
+        boolean writeFrame(byte[] frame, long originNanos);
+    }
+
+    /**
+     * Told about every frame whose write completed successfully
+     */
+    public interface WriteListener {
+        /**
+         * Called without the scheduler lock, the next write waits for it to return so it must not block.
+         * The frame is only valid during the call.
+         */
+        void onFrameWritten(byte[] frame, long originNanos, long nowMillis);
+    }
+
+    /**
+     * Returned by poll when nothing is pending
+     */
+    public static final long IDLE = -1;
+
+    private final FrameWriter writer;
+
+    private WriteListener writeListener;
+
+    /**
+     * Time to wait before writing again after the stack refused a write
+     */
+    private final long retryDelayMillis;
+
+    /**
+     * Newest frame waiting to be written
+     */
+    private final byte[] pendingFrame;
+    private boolean hasPending;
+    private long pendingOrigin;
+
+    /**
+     * Frame currently being written
+     */
+    private final byte[] inFlightFrame;
+    private boolean inFlight;
+    private long inFlightOrigin;
+
+    /**
+     * Set while the listener is told about the frame written, inFlightFrame is not reused until then
+     */
+    private boolean acknowledging;
+
+    /**
+     * No write is started before that time, after a refused write
+     */
+    private long retryTime;
+
+    /**
+     * Set while the writer runs, a completion reported from inside the writer is handled once it returns
+     */
+    private boolean writing;
+    private boolean completedWhileWriting;
+    private boolean completedSuccessfully;
+
+    /**
+     * Statistics
+     */
+    private long submittedFrames;
+    private long writtenFrames;
+    private long coalescedFrames;
+    private long droppedFrames;
+    private long rejectedWrites;
+
+    public ColorWriteScheduler(FrameWriter writer, int frameSize, long retryDelayMillis) {
+        if (retryDelayMillis < 0) {
+            throw new IllegalArgumentException("Retry delay must not be negative: " + retryDelayMillis);
+        }
+        this.writer = writer;
+        this.retryDelayMillis = retryDelayMillis;
+        pendingFrame = new byte[frameSize];
+        inFlightFrame = new byte[frameSize];
+    }
+
+    public synchronized void setWriteListener(WriteListener writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    /**
+     * Queues a frame, replacing any frame still waiting, and writes it right away if the characteristic is free.
+     * The frame is copied, the caller can reuse its buffer.
+     */
+    public void submit(byte[] frame, long nowMillis) {
+        submit(frame, PipelineLatency.NO_ORIGIN, nowMillis);
+    }
+
+    /**
+     * Same as submit(frame, nowMillis), with an origin timestamp handed back to the writer and the listener
+     * with this frame. A coalesced frame passes its origin on to the frame replacing it, so the latency
+     * of the oldest change still waiting is what gets measured.
+     */
+    public void submit(byte[] frame, long originNanos, long nowMillis) {
+        synchronized (this) {
+            submittedFrames++;
+            if (hasPending) {
+                coalescedFrames++;
+                if (pendingOrigin != PipelineLatency.NO_ORIGIN) {
+                    originNanos = pendingOrigin;
+                }
+            }
+            System.arraycopy(frame, 0, pendingFrame, 0, pendingFrame.length);
+            hasPending = true;
+            pendingOrigin = originNanos;
+        }
+
+        poll(nowMillis);
+    }
+
+    /**
+     * To be called when the stack reports the write finished (onCharacteristicWrite).
+     */
+    public void onWriteComplete(boolean success, long nowMillis) {
+        synchronized (this) {
+            if (!inFlight || acknowledging) {
+                return;
+            }
+            if (writing) {
+                completedWhileWriting = true;
+                completedSuccessfully = success;
+                return;
+            }
+            if (success) {
+                acknowledging = true;
+            } else {
+                inFlight = false;
+                retryOrDrop();
+            }
+        }
+
+        if (success) {
+            acknowledge(nowMillis);
+        }
+        poll(nowMillis);
+    }
+
+    /**
+     * Writes the pending frame if the characteristic is free. Returns the time in milliseconds after which
+     * poll should be called again, or IDLE if nothing is pending or a write is in flight (its completion polls).
+     */
+    public long poll(long nowMillis) {
+        while (true) {
+            long origin;
+            synchronized (this) {
+                // A writer still running after clear may be reading inFlightFrame
+                if (!hasPending || inFlight || acknowledging || writing) {
+                    return IDLE;
+                }
+                if (nowMillis < retryTime) {
+                    return retryTime - nowMillis;
+                }
+
+                System.arraycopy(pendingFrame, 0, inFlightFrame, 0, inFlightFrame.length);
+                hasPending = false;
+                inFlight = true;
+                inFlightOrigin = pendingOrigin;
+                origin = inFlightOrigin;
+
+                writing = true;
+                completedWhileWriting = false;
+            }
+
+            boolean started = false;
+            boolean written = false;
+            try {
+                started = writer.writeFrame(inFlightFrame, origin);
+            } finally {
+                synchronized (this) {
+                    writing = false;
+                    if (!started) {
+                        rejectedWrites++;
+                    } else {
+                        writtenFrames++;
+                    }
+                    // Cleared meanwhile otherwise
+                    if (inFlight && (!started || completedWhileWriting)) {
+                        if (started && completedSuccessfully) {
+                            acknowledging = true;
+                            written = true;
+                        } else {
+                            inFlight = false;
+                            retryOrDrop();
+                            retryTime = nowMillis + retryDelayMillis;
+                        }
+                    }
+                }
+            }
+
+            if (!written) {
+                synchronized (this) {
+                    return hasPending && !inFlight ? retryDelayMillis : IDLE;
+                }
+            }
+            acknowledge(nowMillis);
+        }
+    }
+
+    /**
+     * Forgets the pending and in flight frames, e.g. when the connection is lost.
+     */
+    public synchronized void clear() {
+        hasPending = false;
+        inFlight = false;
+        retryTime = 0;
+    }
+
+    /**
+     * Tells the listener about the frame written, then frees the characteristic
+     */
+    private void acknowledge(long nowMillis) {
+        WriteListener listener;
+        long origin;
+        synchronized (this) {
+            listener = writeListener;
+            origin = inFlightOrigin;
+        }
+        try {
+            if (listener != null) {
+                listener.onFrameWritten(inFlightFrame, origin, nowMillis);
+            }
+        } finally {
+            synchronized (this) {
+                acknowledging = false;
+                inFlight = false;
+            }
+        }
+    }
+
+    /**
+     * Puts a frame that did not make it back in the queue, unless a newer frame replaced it
+     */
+    private void retryOrDrop() {
+        if (hasPending) {
+            droppedFrames++;
+        } else {
+            System.arraycopy(inFlightFrame, 0, pendingFrame, 0, pendingFrame.length);
+            hasPending = true;
+            pendingOrigin = inFlightOrigin;
+        }
+    }
+
+    public synchronized boolean isIdle() {
+        return !hasPending && !inFlight && !acknowledging;
+    }
+
+    public synchronized long getSubmittedFrames() {
+        return submittedFrames;
+    }
+
+    public synchronized long getWrittenFrames() {
+        return writtenFrames;
+    }
+
+    /**
+     * Frames replaced by a newer one before they could be written
+     */
+    public synchronized long getCoalescedFrames() {
+        return coalescedFrames;
+    }
+
+    /**
+     * Frames that failed to be written and were replaced by a newer one before a retry
+     */
+    public synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Writes the stack refused to start
+     */
+    public synchronized long getRejectedWrites() {
+        return rejectedWrites;
+    }
+}
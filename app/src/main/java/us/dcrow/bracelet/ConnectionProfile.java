@@ -0,0 +1,92 @@
+package us.dcrow.bracelet;
+
+/**
+ * Link parameters negotiated with a peripheral: connection priority and ATT MTU.
+ * Written from the BLE callbacks, readable from any thread.
+ */
+public class ConnectionProfile {
+
+    /**
+     * Same values as BluetoothGatt.CONNECTION_PRIORITY_*, available on API 21 and up
+     */
+    public static final int PRIORITY_BALANCED = 0;
+    public static final int PRIORITY_HIGH = 1;
+    public static final int PRIORITY_LOW_POWER = 2;
+
+    /**
+     * MTU every link starts with
+     */
+    public static final int DEFAULT_MTU = 23;
+
+    /**
+     * MTU asked for on connection, the largest that fits a single data length extension packet
+     */
+    public static final int PREFERRED_MTU = 247;
+
+    /**
+     * Size of the ATT write and notification header
+     */
+    private static final int ATT_HEADER_SIZE = 3;
+
+    private volatile int priority = PRIORITY_BALANCED;
+
+    private volatile int mtu = DEFAULT_MTU;
+
+    /**
+     * Tells if the platform lets us tune the link at all
+     */
+    private volatile boolean supported;
+
+    /**
+     * Connection priority last granted, one of the PRIORITY_* constants
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * MTU agreed with the peer, DEFAULT_MTU until a larger one was negotiated
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * Largest value that fits a single write or notification
+     */
+    public int getMaxPayload() {
+        return mtu - ATT_HEADER_SIZE;
+    }
+
+    /**
+     * False below API 21, where priority and MTU cannot be changed
+     */
+    public boolean isSupported() {
+        return supported;
+    }
+
+    void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    void setSupported(boolean supported) {
+        this.supported = supported;
+    }
+
+    /**
+     * Back to defaults, e.g. on disconnection.
+     */
+    void reset() {
+        priority = PRIORITY_BALANCED;
+        mtu = DEFAULT_MTU;
+    }
+
+    @Override
+    public String toString() {
+        return "priority " + priority + ", MTU " + mtu;
+    }
+}
@@ -0,0 +1,231 @@
+package us.dcrow.bracelet;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection state of a peripheral, changed by compare-and-set so the binder threads, the handlers
+ * and the UI can all drive it without locks: of two threads racing for the same transition, one wins
+ * and the other is told so, e.g. a second tap on connect while the scan runs does not start another scan.
+ * Observers are told about every transition in the order they happened, on an executor, so the threads
+ * changing the state never wait for them.
+ */
+public class ConnectionStateMachine {
+
+    /**
+     * Observes the transitions of a ConnectionStateMachine
+     */
+    public interface Observer {
+        /**
+         * Called on the observer executor, once per transition and in order.
+         */
+        void onStateChanged(ConnectionStateMachine machine, int from, int to);
+    }
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_SCANNING = 1;
+    public static final int STATE_CONNECTING = 2;
+    public static final int STATE_DISCOVERING = 3;
+    public static final int STATE_READY = 4;
+    public static final int STATE_DISCONNECTING = 5;
+
+    private static final String[] STATE_NAMES = {
+            "IDLE", "SCANNING", "CONNECTING", "DISCOVERING", "READY", "DISCONNECTING"
+    };
+
+    /**
+     * States reachable from each state, as bit masks
+     */
+    private static final int[] ALLOWED_TRANSITIONS = {
+            // IDLE
+            1 << STATE_SCANNING | 1 << STATE_CONNECTING,
+            // SCANNING
+            1 << STATE_CONNECTING | 1 << STATE_DISCONNECTING | 1 << STATE_IDLE,
+            // CONNECTING, may fall back to scanning when a known address does not answer
+            1 << STATE_DISCOVERING | 1 << STATE_READY | 1 << STATE_SCANNING | 1 << STATE_DISCONNECTING | 1 << STATE_IDLE,
+            // DISCOVERING, may scan for another device when this one cannot be set up
+            1 << STATE_READY | 1 << STATE_SCANNING | 1 << STATE_DISCONNECTING | 1 << STATE_IDLE,
+            // READY
+            1 << STATE_DISCONNECTING | 1 << STATE_IDLE,
+            // DISCONNECTING
+            1 << STATE_IDLE
+    };
+
+    /**
+     * Bits of the packed value holding the state, the transition count is above them
+     */
+    private static final int STATE_BITS = 8;
+    private static final long STATE_MASK = (1 << STATE_BITS) - 1;
+
+    private final String name;
+
+    /**
+     * Current state and number of transitions so far, packed so observers can be told in order
+     */
+    private final AtomicLong packedState = new AtomicLong(STATE_IDLE);
+
+    /**
+     * Runs the observers, one task at a time
+     */
+    private final Executor observerExecutor;
+
+    private final CopyOnWriteArrayList<Observer> observers = new CopyOnWriteArrayList<Observer>();
+
+    /**
+     * Transitions not handed to the observers yet, possibly out of order
+     */
+    private final ConcurrentLinkedQueue<Transition> transitions = new ConcurrentLinkedQueue<Transition>();
+
+    /**
+     * Tells if a dispatch is posted and not started yet
+     */
+    private final AtomicBoolean dispatchScheduled = new AtomicBoolean();
+
+    /**
+     * Transitions that overtook an earlier one on their way to the queue, only touched by dispatch
+     */
+    private final PriorityQueue<Transition> overtaking = new PriorityQueue<Transition>();
+
+    /**
+     * Number of the last transition handed to the observers, only touched by dispatch
+     */
+    private long dispatched;
+
+    /**
+     * @param observerExecutor runs the observers, one task at a time, e.g. backed by a Handler
+     */
+    public ConnectionStateMachine(String name, Executor observerExecutor) {
+        this.name = name;
+        this.observerExecutor = observerExecutor;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getState() {
+        return (int) (packedState.get() & STATE_MASK);
+    }
+
+    public boolean isReady() {
+        return getState() == STATE_READY;
+    }
+
+    public void addObserver(Observer observer) {
+        observers.add(observer);
+    }
+
+    public void removeObserver(Observer observer) {
+        observers.remove(observer);
+    }
+
+    /**
+     * Moves from one state to another, returns false if the machine was not in the from state.
+     * Throws IllegalArgumentException if the machine has no such transition.
+     */
+    public boolean transition(int from, int to) {
+        if (!isAllowed(from, to)) {
+            throw new IllegalArgumentException(name + " cannot go from " + getStateName(from)
+                    + " to " + getStateName(to));
+        }
+        while (true) {
+            long current = packedState.get();
+            if ((current & STATE_MASK) != from) {
+                return false;
+            }
+            if (commit(current, from, to)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Moves to a state from whatever state the machine is in, returns false if that transition is not allowed
+     * from the current state, or if the machine is already there.
+     */
+    public boolean moveTo(int to) {
+        while (true) {
+            long current = packedState.get();
+            int from = (int) (current & STATE_MASK);
+            if (!isAllowed(from, to)) {
+                return false;
+            }
+            if (commit(current, from, to)) {
+                return true;
+            }
+        }
+    }
+
+    public static boolean isAllowed(int from, int to) {
+        return from >= 0 && from < ALLOWED_TRANSITIONS.length && (ALLOWED_TRANSITIONS[from] & 1 << to) != 0;
+    }
+
+    public static String getStateName(int state) {
+        return state >= 0 && state < STATE_NAMES.length ? STATE_NAMES[state] : "UNKNOWN(" + state + ")";
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + getStateName(getState());
+    }
+
+    private boolean commit(long current, int from, int to) {
+        long sequence = (current >>> STATE_BITS) + 1;
+        if (!packedState.compareAndSet(current, sequence << STATE_BITS | to)) {
+            return false;
+        }
+        TraceLog.record(TraceLog.EVENT_CONNECTION_STATE, from, to);
+        transitions.offer(new Transition(sequence, from, to));
+        if (dispatchScheduled.compareAndSet(false, true)) {
+            observerExecutor.execute(dispatch);
+        }
+        return true;
+    }
+
+    /**
+     * Hands the queued transitions to the observers in sequence order, on the observer executor.
+     */
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            // Clear first, a transition queued while dispatching posts a new dispatch
+            dispatchScheduled.set(false);
+
+            synchronized (this) {
+                Transition transition;
+                while ((transition = transitions.poll()) != null) {
+                    overtaking.add(transition);
+                }
+                // A gap means the earlier transition is still on its way, its own dispatch delivers the rest
+                while (!overtaking.isEmpty() && overtaking.peek().sequence == dispatched + 1) {
+                    transition = overtaking.poll();
+                    dispatched = transition.sequence;
+                    for (Observer observer : observers) {
+                        observer.onStateChanged(ConnectionStateMachine.this, transition.from, transition.to);
+                    }
+                }
+            }
+        }
+    };
+
+    private static class Transition implements Comparable<Transition> {
+        final long sequence;
+        final int from;
+        final int to;
+
+        Transition(long sequence, int from, int to) {
+            this.sequence = sequence;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public int compareTo(Transition other) {
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package us.dcrow.bracelet;
+
+/**
+ * Exponential moving average, y += alpha * (x - y).
+ * Lower latency than a boxcar average of similar smoothness, and O(1) state.
+ */
+public class ExponentialMovingAverageFilter implements SignalFilter {
+
+    /**
+     * Weight of the newest sample, between 0 (frozen) and 1 (no smoothing)
+     */
+    private final double alpha;
+
+    /**
+     * Current filter output
+     */
+    private double value;
+
+    /**
+     * Tells if the filter was seeded with a first sample
+     */
+    private boolean primed;
+
+    public ExponentialMovingAverageFilter(double alpha) {
+        if (!(alpha > 0 && alpha <= 1)) {
+            throw new IllegalArgumentException("Smoothing factor must be in (0, 1]: " + alpha);
+        }
+        this.alpha = alpha;
+    }
+
+    /**
+     * Builds a filter whose smoothing roughly matches a moving average of the given width.
+     */
+    public static ExponentialMovingAverageFilter withWidth(int width) {
+        return new ExponentialMovingAverageFilter(2.0 / (width + 1));
+    }
+
+    @Override
+    public int filter(int sample) {
+        if (primed) {
+            value += alpha * (sample - value);
+        } else {
+            // Seed with the first sample instead of ramping up from 0
+            value = sample;
+            primed = true;
+        }
+        return (int) Math.round(value);
+    }
+
+    @Override
+    public void reset() {
+        value = 0;
+        primed = false;
+    }
+
+    public double getAlpha() {
+        return alpha;
+    }
+}
@@ -0,0 +1,106 @@
+package us.dcrow.bracelet;
+
+/**
+ * Drops color frames the eye could not tell apart from the frame the Bracelet already shows.
+ * Frames are compared with the last acknowledged frame using the "redmean" weighted RGB distance,
+ * a cheap approximation of perceived color difference. Brightness changes are always sent, and a frame
+ * is sent anyway once the keep-alive interval passed since the last acknowledged write.
+ */
+public class FrameDeduplicator {
+
+    /**
+     * Default threshold, colors closer than this are not worth a write
+     */
+    public static final int DEFAULT_THRESHOLD = 8;
+
+    /**
+     * Default keep-alive, a frame is sent at least this often even if it did not change
+     */
+    public static final long DEFAULT_KEEP_ALIVE = 1000;
+
+    /**
+     * Distance under which two colors are considered the same, in redmean units (0 to about 765)
+     */
+    private volatile int threshold;
+
+    /**
+     * Longest time without a write, 0 to never force one
+     */
+    private final long keepAliveMillis;
+
+    /**
+     * Last frame the Bracelet acknowledged
+     */
+    private final byte[] acknowledgedFrame = new byte[HuePalette.FRAME_SIZE];
+    private boolean hasAcknowledged;
+    private long acknowledgedAt;
+
+    /**
+     * Frames not sent because they matched the acknowledged one
+     */
+    private long savedWrites;
+
+    public FrameDeduplicator(int threshold, long keepAliveMillis) {
+        setThreshold(threshold);
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    public void setThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative: " + threshold);
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * Tells if the frame differs enough from the acknowledged one to be worth a write.
+     */
+    public synchronized boolean shouldSend(byte[] frame, long nowMillis) {
+        if (!hasAcknowledged
+                || frame[3] != acknowledgedFrame[3]
+                || (keepAliveMillis > 0 && nowMillis - acknowledgedAt >= keepAliveMillis)) {
+            return true;
+        }
+
+        int distanceSquared = distanceSquared(frame[0] & 0xFF, frame[1] & 0xFF, frame[2] & 0xFF,
+                acknowledgedFrame[0] & 0xFF, acknowledgedFrame[1] & 0xFF, acknowledgedFrame[2] & 0xFF);
+        int limit = threshold;
+        if (distanceSquared > limit * limit) {
+            return true;
+        }
+
+        savedWrites++;
+        return false;
+    }
+
+    /**
+     * To be called when the Bracelet acknowledged a frame, whatever its source.
+     */
+    public synchronized void onFrameAcknowledged(byte[] frame, long nowMillis) {
+        System.arraycopy(frame, 0, acknowledgedFrame, 0, acknowledgedFrame.length);
+        hasAcknowledged = true;
+        acknowledgedAt = nowMillis;
+    }
+
+    /**
+     * Forgets the acknowledged frame, e.g. when the Bracelet disconnected.
+     */
+    public synchronized void reset() {
+        hasAcknowledged = false;
+    }
+
+    public synchronized long getSavedWrites() {
+        return savedWrites;
+    }
+
+    /**
+     * Square of the redmean color distance, see https://www.compuphase.com/cmetric.htm
+     */
+    static int distanceSquared(int r1, int g1, int b1, int r2, int g2, int b2) {
+        int redMean = (r1 + r2) >> 1;
+        int dr = r1 - r2;
+        int dg = g1 - g2;
+        int db = b1 - b2;
+        return (((512 + redMean) * dr * dr) >> 8) + 4 * dg * dg + (((767 - redMean) * db * db) >> 8);
+    }
+}
@@ -0,0 +1,102 @@
+package us.dcrow.bracelet;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion of a queued GATT operation.
+ * The result is the GATT status reported by the stack (BluetoothGatt.GATT_SUCCESS on success),
+ * or one of the GattOperationQueue.STATUS_* codes when the operation never reached the peer.
+ * Callers on BLE or main threads should use a Listener instead of blocking on get().
+ */
+public class GattFuture implements Future<Integer> {
+
+    /**
+     * Notified once the operation completed, on the thread that completed it
+     */
+    public interface Listener {
+        void onComplete(int status);
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile int status;
+
+    private Listener listener;
+
+    private boolean completed;
+
+    /**
+     * Sets the listener, called right away if the operation already completed.
+     */
+    public void setListener(Listener listener) {
+        boolean notifyNow;
+        synchronized (this) {
+            this.listener = listener;
+            notifyNow = completed;
+        }
+        if (notifyNow) {
+            listener.onComplete(status);
+        }
+    }
+
+    /**
+     * Completes the future, returns false if it was already completed.
+     */
+    boolean complete(int status) {
+        Listener toNotify;
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            completed = true;
+            this.status = status;
+            toNotify = listener;
+        }
+        done.countDown();
+        if (toNotify != null) {
+            toNotify.onComplete(status);
+        }
+        return true;
+    }
+
+    /**
+     * Tells if the operation completed with BluetoothGatt.GATT_SUCCESS
+     */
+    public boolean isSuccess() {
+        return isDone() && status == 0;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        // Operations already handed to the stack cannot be taken back
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return isDone() && status == GattOperationQueue.STATUS_CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Integer get() throws InterruptedException, ExecutionException {
+        done.await();
+        return status;
+    }
+
+    @Override
+    public Integer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return status;
+    }
+}
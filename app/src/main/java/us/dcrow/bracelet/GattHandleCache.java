@@ -0,0 +1,113 @@
+package us.dcrow.bracelet;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Characteristics and descriptors a GattPeripheralLink works with, resolved after every service discovery
+ * and kept by address for the reconnects that skip it.
+ * The objects belong to the BluetoothGatt that discovered them, so they are only reused when the same
+ * BluetoothGatt reconnects; the link invalidates them when a setup with them fails.
+ */
+public class GattHandleCache {
+
+    /**
+     * Client characteristic configuration descriptor, standard
+     */
+    public static final UUID CLIENT_CONFIG_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * Used for logging.
+     */
+    private static final String TAG = "Gatt Handle Cache";
+
+    /**
+     * Resolved handles of a peripheral, the ones its profile does not use are null
+     */
+    public static class Handles {
+        public final BluetoothGattCharacteristic notifyCharacteristic;
+        public final BluetoothGattDescriptor notifyConfigDescriptor;
+        public final BluetoothGattCharacteristic writeCharacteristic;
+
+        Handles(BluetoothGattCharacteristic notifyCharacteristic, BluetoothGattDescriptor notifyConfigDescriptor,
+                BluetoothGattCharacteristic writeCharacteristic) {
+            this.notifyCharacteristic = notifyCharacteristic;
+            this.notifyConfigDescriptor = notifyConfigDescriptor;
+            this.writeCharacteristic = writeCharacteristic;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Handles> handles = new ConcurrentHashMap<String, Handles>();
+
+    /**
+     * Handles resolved by the last discovery at this address, null if none. Only usable on the BluetoothGatt
+     * that discovered them.
+     */
+    public Handles get(String address) {
+        return handles.get(address);
+    }
+
+    /**
+     * Looks the handles up in the services the gatt just discovered and caches them in place of older ones.
+     * Returns null, and forgets the older ones, if the peripheral does not have what the profile needs.
+     */
+    public Handles resolve(BluetoothGatt gatt, PeripheralProfile profile) {
+        String address = gatt.getDevice().getAddress();
+        Handles resolved = lookUp(gatt, profile);
+        if (resolved == null) {
+            handles.remove(address);
+            return null;
+        }
+        handles.put(address, resolved);
+        return resolved;
+    }
+
+    private Handles lookUp(BluetoothGatt gatt, PeripheralProfile profile) {
+        BluetoothGattService service = gatt.getService(profile.getServiceUuid());
+        if (service == null) {
+            Log.e(TAG, profile + " service not found!");
+            return null;
+        }
+
+        BluetoothGattCharacteristic notifyCharacteristic = null;
+        BluetoothGattDescriptor configDescriptor = null;
+        if (profile.getNotifyCharacteristicUuid() != null) {
+            notifyCharacteristic = service.getCharacteristic(profile.getNotifyCharacteristicUuid());
+            if (notifyCharacteristic == null) {
+                Log.e(TAG, profile + " notify characteristic not found!");
+                return null;
+            }
+            configDescriptor = notifyCharacteristic.getDescriptor(CLIENT_CONFIG_UUID);
+            if (configDescriptor == null) {
+                Log.e(TAG, profile + " notify config descriptor not found!");
+                return null;
+            }
+        }
+
+        BluetoothGattCharacteristic writeCharacteristic = null;
+        if (profile.getWriteCharacteristicUuid() != null) {
+            writeCharacteristic = service.getCharacteristic(profile.getWriteCharacteristicUuid());
+            if (writeCharacteristic == null) {
+                Log.e(TAG, profile + " write characteristic not found!");
+                return null;
+            }
+        }
+
+        return new Handles(notifyCharacteristic, configDescriptor, writeCharacteristic);
+    }
+
+    /**
+     * Forgets the handles of a peripheral, they are looked up again after the next service discovery.
+     */
+    public void invalidate(String address) {
+        if (handles.remove(address) != null) {
+            Log.d(TAG, "Handles of " + address + " invalidated");
+        }
+    }
+}
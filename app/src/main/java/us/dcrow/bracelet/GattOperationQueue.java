@@ -0,0 +1,375 @@
+package us.dcrow.bracelet;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Serializes the GATT operations of one connection.
+ * Android's GATT stack only accepts one outstanding operation per connection and silently fails the others,
+ * so operations are queued and started one at a time. Each operation completes when the matching
+ * BluetoothGattCallback event is forwarded to the queue, or when its timeout expires.
+ */
+public class GattOperationQueue {
+
+    /**
+     * Status of operations that did not answer in time
+     */
+    public static final int STATUS_TIMEOUT = -1;
+
+    /**
+     * Status of operations the stack refused to start
+     */
+    public static final int STATUS_REJECTED = -2;
+
+    /**
+     * Status of operations dropped when the queue was cleared
+     */
+    public static final int STATUS_CANCELLED = -3;
+
+    /**
+     * Status of writes replaced by a newer write to the same characteristic before they started
+     */
+    public static final int STATUS_SUPERSEDED = -4;
+
+    /**
+     * Default time allowed for an operation to complete
+     */
+    public static final long OPERATION_TIMEOUT = 2000;
+
+    /**
+     * Time allowed for a service discovery to complete
+     */
+    public static final long DISCOVERY_TIMEOUT = 10000;
+
+    private static final int DISCOVER_SERVICES = 0;
+    private static final int SET_NOTIFICATION = 1;
+    private static final int WRITE_DESCRIPTOR = 2;
+    private static final int WRITE_CHARACTERISTIC = 3;
+    private static final int READ_CHARACTERISTIC = 4;
+    private static final int READ_RSSI = 5;
+    private static final int REQUEST_MTU = 6;
+    private static final int REQUEST_CONNECTION_PRIORITY = 7;
+
+    /**
+     * Used for logging.
+     */
+    private static final String TAG = "Gatt Operation Queue";
+
+    private final BluetoothGatt gatt;
+
+    /**
+     * Runs the operation timeouts
+     */
+    private final Handler handler;
+
+    /**
+     * Operations not started yet, with at most one write per characteristic
+     */
+    private final ArrayDeque<Operation> pending = new ArrayDeque<Operation>();
+
+    /**
+     * Operation waiting for its callback, null if the queue is idle
+     */
+    private Operation current;
+
+    public GattOperationQueue(BluetoothGatt gatt, Handler handler) {
+        this.gatt = gatt;
+        this.handler = handler;
+    }
+
+    public BluetoothGatt getGatt() {
+        return gatt;
+    }
+
+    public GattFuture discoverServices() {
+        return enqueue(new Operation(DISCOVER_SERVICES, null, null, 0, DISCOVERY_TIMEOUT));
+    }
+
+    /**
+     * Enables or disables local notifications for a characteristic.
+     * Completes as soon as it ran, the stack does not call back for it.
+     */
+    public GattFuture setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+        return enqueue(new Operation(SET_NOTIFICATION, characteristic, null, enable ? 1 : 0, OPERATION_TIMEOUT));
+    }
+
+    public GattFuture writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+        return enqueue(new Operation(WRITE_DESCRIPTOR, descriptor, value, 0, OPERATION_TIMEOUT));
+    }
+
+    /**
+     * Writes a characteristic. The value is set on the characteristic when the operation starts,
+     * so the array must not be reused before the returned future completes.
+     * A write to the same characteristic still waiting in the queue takes the new value in its place,
+     * its future completes with STATUS_SUPERSEDED, so the queue never holds stale values.
+     */
+    public GattFuture writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType) {
+        GattFuture superseded;
+        GattFuture future;
+        synchronized (this) {
+            Operation queued = findPendingWrite(characteristic);
+            if (queued == null) {
+                superseded = null;
+                future = null;
+            } else {
+                superseded = queued.future;
+                queued.value = value;
+                queued.argument = writeType;
+                queued.future = new GattFuture();
+                future = queued.future;
+            }
+        }
+        if (superseded == null) {
+            return enqueue(new Operation(WRITE_CHARACTERISTIC, characteristic, value, writeType, OPERATION_TIMEOUT));
+        }
+        superseded.complete(STATUS_SUPERSEDED);
+        return future;
+    }
+
+    public GattFuture readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return enqueue(new Operation(READ_CHARACTERISTIC, characteristic, null, 0, OPERATION_TIMEOUT));
+    }
+
+    public GattFuture readRemoteRssi() {
+        return enqueue(new Operation(READ_RSSI, null, null, 0, OPERATION_TIMEOUT));
+    }
+
+    /**
+     * Asks the peer for a larger MTU, API 21 and up. Completes with STATUS_REJECTED on older devices.
+     * The agreed MTU comes with BluetoothGattCallback.onMtuChanged.
+     */
+    public GattFuture requestMtu(int mtu) {
+        return enqueue(new Operation(REQUEST_MTU, null, null, mtu, OPERATION_TIMEOUT));
+    }
+
+    /**
+     * Asks for a BluetoothGatt.CONNECTION_PRIORITY_* connection interval, API 21 and up.
+     * Completes as soon as the request was handed to the stack, which does not call back for it.
+     */
+    public GattFuture requestConnectionPriority(int priority) {
+        return enqueue(new Operation(REQUEST_CONNECTION_PRIORITY, null, null, priority, OPERATION_TIMEOUT));
+    }
+
+    // Callbacks, to be forwarded from the connection's BluetoothGattCallback
+
+    public void onServicesDiscovered(int status) {
+        complete(DISCOVER_SERVICES, null, status);
+    }
+
+    public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        complete(WRITE_DESCRIPTOR, descriptor, status);
+    }
+
+    public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        complete(WRITE_CHARACTERISTIC, characteristic, status);
+    }
+
+    public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+        complete(READ_CHARACTERISTIC, characteristic, status);
+    }
+
+    public void onReadRemoteRssi(int status) {
+        complete(READ_RSSI, null, status);
+    }
+
+    public void onMtuChanged(int status) {
+        complete(REQUEST_MTU, null, status);
+    }
+
+    /**
+     * Cancels the running and pending operations, e.g. when the connection dropped.
+     */
+    public void clear() {
+        ArrayDeque<Operation> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayDeque<Operation>(pending);
+            pending.clear();
+            if (current != null) {
+                handler.removeCallbacks(current);
+                cancelled.addFirst(current);
+                current = null;
+            }
+        }
+        for (Operation operation : cancelled) {
+            operation.future.complete(STATUS_CANCELLED);
+        }
+    }
+
+    public synchronized int size() {
+        return pending.size() + (current != null ? 1 : 0);
+    }
+
+    /**
+     * Write to the characteristic waiting in the queue, null if none
+     */
+    private Operation findPendingWrite(BluetoothGattCharacteristic characteristic) {
+        for (Operation operation : pending) {
+            if (operation.type == WRITE_CHARACTERISTIC && isSameTarget(operation.target, characteristic)) {
+                return operation;
+            }
+        }
+        return null;
+    }
+
+    private GattFuture enqueue(Operation operation) {
+        synchronized (this) {
+            pending.addLast(operation);
+        }
+        startNext();
+        return operation.future;
+    }
+
+    /**
+     * Completes the running operation if the callback is for it, then starts the next one.
+     */
+    private void complete(int type, Object target, int status) {
+        Operation done;
+        synchronized (this) {
+            if (current == null || current.type != type || (target != null && !isSameTarget(current.target, target))) {
+                Log.w(TAG, "Unexpected GATT callback of type " + type + " with status " + status);
+                return;
+            }
+            done = current;
+            current = null;
+            handler.removeCallbacks(done);
+        }
+        done.future.complete(status);
+        startNext();
+    }
+
+    /**
+     * Tells if a callback is about the target of the current operation. The stack reports its own objects,
+     * which are not the ones queued when those come from a GattHandleCache filled through another BluetoothGatt.
+     */
+    private static boolean isSameTarget(Object target, Object reported) {
+        if (target == reported) {
+            return true;
+        }
+        if (target instanceof BluetoothGattCharacteristic && reported instanceof BluetoothGattCharacteristic) {
+            return isSameCharacteristic((BluetoothGattCharacteristic) target, (BluetoothGattCharacteristic) reported);
+        }
+        if (target instanceof BluetoothGattDescriptor && reported instanceof BluetoothGattDescriptor) {
+            BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor) target;
+            BluetoothGattDescriptor other = (BluetoothGattDescriptor) reported;
+            return descriptor.getUuid().equals(other.getUuid())
+                    && isSameCharacteristic(descriptor.getCharacteristic(), other.getCharacteristic());
+        }
+        return false;
+    }
+
+    private static boolean isSameCharacteristic(BluetoothGattCharacteristic characteristic,
+                                                BluetoothGattCharacteristic other) {
+        return characteristic.getInstanceId() == other.getInstanceId()
+                && characteristic.getUuid().equals(other.getUuid());
+    }
+
+    private void timeout(Operation operation) {
+        synchronized (this) {
+            if (current != operation) {
+                return;
+            }
+            current = null;
+        }
+        Log.w(TAG, "GATT operation of type " + operation.type + " timed out");
+        operation.future.complete(STATUS_TIMEOUT);
+        startNext();
+    }
+
+    private void startNext() {
+        while (true) {
+            Operation operation;
+            synchronized (this) {
+                if (current != null || pending.isEmpty()) {
+                    return;
+                }
+                operation = pending.pollFirst();
+                current = operation;
+            }
+
+            int status;
+            if (!operation.start(gatt)) {
+                status = STATUS_REJECTED;
+            } else if (operation.type == SET_NOTIFICATION || operation.type == REQUEST_CONNECTION_PRIORITY) {
+                status = BluetoothGatt.GATT_SUCCESS;
+            } else {
+                handler.postDelayed(operation, operation.timeout);
+                return;
+            }
+
+            synchronized (this) {
+                if (current == operation) {
+                    current = null;
+                }
+            }
+            operation.future.complete(status);
+        }
+    }
+
+    /**
+     * Queued operation, doubles as its own timeout runnable.
+     * The value, argument and future of a pending write may be replaced under the queue lock until it starts.
+     */
+    private class Operation implements Runnable {
+        final int type;
+        final Object target;
+        byte[] value;
+        int argument;
+        final long timeout;
+        GattFuture future = new GattFuture();
+
+        Operation(int type, Object target, byte[] value, int argument, long timeout) {
+            this.type = type;
+            this.target = target;
+            this.value = value;
+            this.argument = argument;
+            this.timeout = timeout;
+        }
+
+        boolean start(BluetoothGatt gatt) {
+            switch (type) {
+                case DISCOVER_SERVICES:
+                    return gatt.discoverServices();
+                case SET_NOTIFICATION:
+                    return gatt.setCharacteristicNotification((BluetoothGattCharacteristic) target, argument != 0);
+                case WRITE_DESCRIPTOR:
+                    BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor) target;
+                    descriptor.setValue(value);
+                    return gatt.writeDescriptor(descriptor);
+                case WRITE_CHARACTERISTIC:
+                    BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic) target;
+                    characteristic.setValue(value);
+                    characteristic.setWriteType(argument);
+                    return gatt.writeCharacteristic(characteristic);
+                case READ_CHARACTERISTIC:
+                    return gatt.readCharacteristic((BluetoothGattCharacteristic) target);
+                case READ_RSSI:
+                    return gatt.readRemoteRssi();
+                case REQUEST_MTU:
+                case REQUEST_CONNECTION_PRIORITY:
+                    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && startLinkRequest(gatt);
+                default:
+                    return false;
+            }
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        private boolean startLinkRequest(BluetoothGatt gatt) {
+            if (type == REQUEST_MTU) {
+                return gatt.requestMtu(argument);
+            }
+            return gatt.requestConnectionPriority(argument);
+        }
+
+        @Override
+        public void run() {
+            timeout(this);
+        }
+    }
+}
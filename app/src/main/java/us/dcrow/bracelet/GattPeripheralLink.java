@@ -0,0 +1,357 @@
+package us.dcrow.bracelet;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * PeripheralLink over a BluetoothGatt connection.
+ * Once connected, discovers the services of its PeripheralProfile, enables the notifications of the notify characteristic and
+ * negotiates a larger MTU. Every GATT operation goes through a GattOperationQueue.
+ * The characteristics come from a GattHandleCache, and a reconnect through the same BluetoothGatt
+ * skips the service discovery. The connection state goes through a ConnectionStateMachine, so a connect
+ * racing a disconnect or the stack's own callbacks cannot leave the link half set up.
+ */
+public class GattPeripheralLink implements PeripheralLink {
+
+    /**
+     * Used for logging.
+     */
+    private static final String TAG = "Gatt Peripheral Link";
+
+    private final Context context;
+    private final BluetoothDevice device;
+    private final PeripheralProfile profile;
+    private final String name;
+
+    /**
+     * Runs the GATT operation timeouts
+     */
+    private final Handler handler;
+
+    /**
+     * Characteristics resolved by the last service discovery, reused when the same BluetoothGatt reconnects
+     */
+    private final GattHandleCache handleCache;
+
+    private final ConnectionProfile connectionProfile = new ConnectionProfile();
+
+    /**
+     * Connection priority last asked for, granted or not yet, back to balanced with every new connection
+     */
+    private volatile int requestedPriority = ConnectionProfile.PRIORITY_BALANCED;
+
+    private volatile Listener listener;
+
+    private BluetoothGatt gatt;
+    private volatile GattOperationQueue queue;
+    private volatile BluetoothGattCharacteristic writeCharacteristic;
+
+    /**
+     * IDLE until connect, then CONNECTING, DISCOVERING and READY. IDLE again once the connection dropped,
+     * gatt may then be connected again.
+     */
+    private final ConnectionStateMachine state;
+
+    /**
+     * Tells if gatt went through a successful service discovery, it keeps the services across reconnects
+     */
+    private volatile boolean servicesDiscovered;
+
+    /**
+     * @param profile service and characteristics to set up
+     * @param handleCache shared by the links of a PeripheralManager
+     */
+    public GattPeripheralLink(Context context, BluetoothDevice device, PeripheralProfile profile, Handler handler,
+                              GattHandleCache handleCache) {
+        this.context = context;
+        this.device = device;
+        this.profile = profile;
+        this.name = profile.getName();
+        this.handler = handler;
+        this.handleCache = handleCache;
+        state = new ConnectionStateMachine(name + " " + device.getAddress(), new HandlerExecutor(handler));
+        connectionProfile.setSupported(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getAddress() {
+        return device.getAddress();
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Connection state, observers may follow it
+     */
+    public ConnectionStateMachine getConnectionState() {
+        return state;
+    }
+
+    @Override
+    public synchronized void connect(boolean autoConnect) {
+        if (!state.transition(ConnectionStateMachine.STATE_IDLE, ConnectionStateMachine.STATE_CONNECTING)) {
+            // Already connecting or connected
+            return;
+        }
+        if (gatt != null) {
+            // Same BluetoothGatt, its discovered services come along
+            Log.d(TAG, "Reconnecting to " + name + " at " + device.getAddress());
+            gatt.connect();
+            return;
+        }
+        Log.d(TAG, "Connecting to " + name + " at " + device.getAddress());
+        gatt = device.connectGatt(context, autoConnect, callback);
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        if (gatt == null) {
+            return;
+        }
+        // A pending connection is just cancelled, the stack does not report it
+        if (!state.transition(ConnectionStateMachine.STATE_CONNECTING, ConnectionStateMachine.STATE_IDLE)) {
+            state.moveTo(ConnectionStateMachine.STATE_DISCONNECTING);
+        }
+        gatt.disconnect();
+    }
+
+    @Override
+    public synchronized void close() {
+        release(false);
+    }
+
+    /**
+     * Drops the BluetoothGatt, a later connect starts over with a new one and a full service discovery.
+     */
+    private synchronized void release(boolean disconnect) {
+        state.moveTo(ConnectionStateMachine.STATE_IDLE);
+        servicesDiscovered = false;
+        if (queue != null) {
+            queue.clear();
+        }
+        if (gatt != null) {
+            if (disconnect) {
+                gatt.disconnect();
+            }
+            gatt.close();
+            gatt = null;
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return state.isReady();
+    }
+
+    @Override
+    public boolean write(byte[] value) {
+        GattOperationQueue queue = this.queue;
+        BluetoothGattCharacteristic characteristic = writeCharacteristic;
+        if (!state.isReady() || queue == null || characteristic == null) {
+            return false;
+        }
+        queue.writeCharacteristic(characteristic, value, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE)
+                .setListener(writeListener);
+        return true;
+    }
+
+    @Override
+    public void requestConnectionPriority(final int priority) {
+        GattOperationQueue queue = this.queue;
+        // Against the last request rather than the granted priority, which lags while a request is queued
+        if (queue == null || !connectionProfile.isSupported() || requestedPriority == priority) {
+            return;
+        }
+        requestedPriority = priority;
+        queue.requestConnectionPriority(priority).setListener(new GattFuture.Listener() {
+            @Override
+            public void onComplete(int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    connectionProfile.setPriority(priority);
+                    Log.d(TAG, name + " connection priority set to " + priority);
+                } else if (requestedPriority == priority) {
+                    // Lets the next request try again
+                    requestedPriority = connectionProfile.getPriority();
+                }
+            }
+        });
+    }
+
+    @Override
+    public ConnectionProfile getConnectionProfile() {
+        return connectionProfile;
+    }
+
+    private final GattFuture.Listener writeListener = new GattFuture.Listener() {
+        @Override
+        public void onComplete(int status) {
+            Listener listener = GattPeripheralLink.this.listener;
+            if (listener != null) {
+                listener.onWriteComplete(GattPeripheralLink.this, status);
+            }
+        }
+    };
+
+    /**
+     * Enables the notifications and keeps the write characteristic, then tells the listener the link is ready
+     * unless it was disconnected in the meantime.
+     */
+    private void setUp(GattHandleCache.Handles handles) {
+        if (handles.notifyCharacteristic != null) {
+            queue.setCharacteristicNotification(handles.notifyCharacteristic, true);
+            queue.writeDescriptor(handles.notifyConfigDescriptor, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)
+                    .setListener(notifySetUpListener);
+        }
+        writeCharacteristic = handles.writeCharacteristic;
+
+        // Queued behind the notification setup
+        if (connectionProfile.isSupported()) {
+            queue.requestMtu(ConnectionProfile.PREFERRED_MTU);
+        }
+
+        //Now we assume that the device is fully connected
+        if (!state.moveTo(ConnectionStateMachine.STATE_READY)) {
+            return;
+        }
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onReady(this);
+        }
+    }
+
+    /**
+     * The cached handles may be stale, e.g. after a firmware update of the peripheral: forget them and drop
+     * the connection, the next one discovers the services again.
+     */
+    private final GattFuture.Listener notifySetUpListener = new GattFuture.Listener() {
+        @Override
+        public void onComplete(int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS && status != GattOperationQueue.STATUS_CANCELLED) {
+                Log.e(TAG, name + " notifications could not be enabled, status " + status);
+                servicesDiscovered = false;
+                handleCache.invalidate(device.getAddress());
+                disconnect();
+            }
+        }
+    };
+
+    /**
+     * Gives up on a peripheral that cannot be set up: disconnects, releases the BluetoothGatt and reports the
+     * link disconnected, so the PeripheralManager falls back to a scan or connects it again later.
+     */
+    private void abandon(String reason) {
+        Log.e(TAG, name + " at " + device.getAddress() + " " + reason + ", closing the connection");
+        release(true);
+        connectionProfile.reset();
+        requestedPriority = ConnectionProfile.PRIORITY_BALANCED;
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onDisconnected(this);
+        }
+    }
+
+    private final BluetoothGattCallback callback = new BluetoothGattCallback() {
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                // The stack may reconnect by itself, see autoConnect
+                state.transition(ConnectionStateMachine.STATE_IDLE, ConnectionStateMachine.STATE_CONNECTING);
+                queue = new GattOperationQueue(gatt, handler);
+                Listener listener = GattPeripheralLink.this.listener;
+                if (listener != null) {
+                    listener.onConnected(GattPeripheralLink.this);
+                }
+                GattHandleCache.Handles handles = handleCache.get(device.getAddress());
+                if (servicesDiscovered && handles != null) {
+                    Log.d(TAG, "Reconnected to " + name + ", reusing its services");
+                    setUp(handles);
+                } else {
+                    Log.d(TAG, "Connected to " + name + ", attempting to start service discovery");
+                    state.transition(ConnectionStateMachine.STATE_CONNECTING, ConnectionStateMachine.STATE_DISCOVERING);
+                    queue.discoverServices();
+                }
+
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.d(TAG, "Disconnected from " + name + ".");
+                state.moveTo(ConnectionStateMachine.STATE_IDLE);
+                if (queue != null) {
+                    queue.clear();
+                }
+                connectionProfile.reset();
+                requestedPriority = ConnectionProfile.PRIORITY_BALANCED;
+                Listener listener = GattPeripheralLink.this.listener;
+                if (listener != null) {
+                    listener.onDisconnected(GattPeripheralLink.this);
+                }
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            queue.onServicesDiscovered(status);
+
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                abandon("service discovery failed with status " + status);
+                return;
+            }
+            servicesDiscovered = true;
+            // Looked up again, the cached handles belong to the BluetoothGatt that discovered them
+            GattHandleCache.Handles handles = handleCache.resolve(gatt, profile);
+            if (handles == null) {
+                abandon("does not have the " + profile + " service and characteristics");
+                return;
+            }
+            setUp(handles);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            Listener listener = GattPeripheralLink.this.listener;
+            if (listener != null) {
+                listener.onNotification(GattPeripheralLink.this, characteristic.getValue());
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            queue.onCharacteristicWrite(characteristic, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            queue.onDescriptorWrite(descriptor, status);
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            Log.d(TAG, name + " reported RSSI:" + rssi + " and status: " + status);
+            queue.onReadRemoteRssi(status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                connectionProfile.setMtu(mtu);
+                Log.d(TAG, name + " MTU set to " + mtu);
+            }
+            queue.onMtuChanged(status);
+        }
+    };
+}
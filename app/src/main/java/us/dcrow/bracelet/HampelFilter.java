@@ -0,0 +1,117 @@
+package us.dcrow.bracelet;
+
+/**
+ * Hampel outlier rejector.
+ * Replaces a sample by the window median when it lies more than k scaled median absolute deviations
+ * away from it, and passes it through untouched otherwise. Meant for short windows (5 to 15 samples),
+ * the median and deviation are computed by insertion sort into preallocated scratch buffers.
+ */
+public class HampelFilter implements SignalFilter {
+
+    /**
+     * Scales the median absolute deviation to a standard deviation estimate for gaussian noise
+     */
+    private static final double MAD_SCALE = 1.4826;
+
+    /**
+     * Outlier threshold, in estimated standard deviations
+     */
+    private final double threshold;
+
+    /**
+     * Last samples
+     */
+    private final int[] window;
+
+    /**
+     * Scratch buffer for sorting, never escapes the filter
+     */
+    private final int[] sorted;
+
+    /**
+     * Next position to write and number of valid samples
+     */
+    private int head;
+    private int count;
+
+    /**
+     * Number of samples replaced since the last reset
+     */
+    private long rejectedCount;
+
+    public HampelFilter(int width, double threshold) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("Filter width must be at least one sample");
+        }
+        if (!(threshold >= 0)) {
+            throw new IllegalArgumentException("Threshold must not be negative: " + threshold);
+        }
+        this.threshold = threshold;
+        window = new int[width];
+        sorted = new int[width];
+    }
+
+    public HampelFilter(int width) {
+        this(width, 3);
+    }
+
+    @Override
+    public int filter(int sample) {
+        window[head] = sample;
+        head++;
+        if (head == window.length) {
+            head = 0;
+        }
+        if (count < window.length) {
+            count++;
+        }
+
+        for (int i = 0; i < count; i++) {
+            sorted[i] = window[i];
+        }
+        int median = sortedMedian();
+
+        for (int i = 0; i < count; i++) {
+            sorted[i] = Math.abs(window[i] - median);
+        }
+        int deviation = sortedMedian();
+
+        if (Math.abs(sample - median) > threshold * MAD_SCALE * deviation) {
+            rejectedCount++;
+            return median;
+        }
+        return sample;
+    }
+
+    @Override
+    public void reset() {
+        head = 0;
+        count = 0;
+        rejectedCount = 0;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Sorts the first count entries of the scratch buffer and returns their median
+     */
+    private int sortedMedian() {
+        for (int i = 1; i < count; i++) {
+            int value = sorted[i];
+            int j = i - 1;
+            while (j >= 0 && sorted[j] > value) {
+                sorted[j + 1] = sorted[j];
+                j--;
+            }
+            sorted[j + 1] = value;
+        }
+
+        int middle = count >> 1;
+        if ((count & 1) == 1) {
+            return sorted[middle];
+        }
+        return (int) (((long) sorted[middle - 1] + sorted[middle]) / 2);
+    }
+}
@@ -0,0 +1,23 @@
+package us.dcrow.bracelet;
+
+import android.os.Handler;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on the thread of a Handler, one at a time and in order, e.g. the observers of a ConnectionStateMachine.
+ * Tasks posted once the Handler's looper quit are dropped.
+ */
+public class HandlerExecutor implements Executor {
+
+    private final Handler handler;
+
+    public HandlerExecutor(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        handler.post(task);
+    }
+}
@@ -0,0 +1,86 @@
+package us.dcrow.bracelet;
+
+/**
+ * Smooths the steps between filtered hue states for the render loop.
+ * Each new hue becomes the target of a linear ramp that starts at the hue currently shown and lasts
+ * one sample interval, estimated from the arrival times of the hues. Frames rendered between two samples
+ * then land on intermediate hues instead of repeating the last one.
+ */
+public class HueInterpolator {
+
+    /**
+     * Returned when there is nothing to show, or when the pipeline asked for the Bracelet to be dark
+     */
+    public static final int NO_HUE = BreathingPipeline.NO_HUE;
+
+    /**
+     * Weight of the newest interval in the sample interval estimate, out of 8
+     */
+    private static final int INTERVAL_WEIGHT = 2;
+
+    /**
+     * Longest ramp, so a sensor pausing does not stretch the next transition
+     */
+    private final long maxIntervalMillis;
+
+    private int fromHue = NO_HUE;
+    private int toHue = NO_HUE;
+
+    /**
+     * Start of the current ramp
+     */
+    private long rampStart;
+
+    /**
+     * Estimated time between two samples, 0 until two samples were seen
+     */
+    private long intervalMillis;
+
+    public HueInterpolator(long maxIntervalMillis) {
+        this.maxIntervalMillis = maxIntervalMillis;
+    }
+
+    /**
+     * Sets the hue to ramp to, starting from the hue shown at that time.
+     */
+    public void update(int hue, long nowMillis) {
+        if (toHue != NO_HUE) {
+            long elapsed = Math.min(nowMillis - rampStart, maxIntervalMillis);
+            intervalMillis = intervalMillis == 0
+                    ? elapsed
+                    : (intervalMillis * (8 - INTERVAL_WEIGHT) + elapsed * INTERVAL_WEIGHT) / 8;
+        }
+
+        fromHue = hue == NO_HUE ? NO_HUE : hueAt(nowMillis);
+        toHue = hue;
+        rampStart = nowMillis;
+    }
+
+    /**
+     * Hue to show at the given time, NO_HUE if none.
+     */
+    public int hueAt(long nowMillis) {
+        if (fromHue == NO_HUE || toHue == NO_HUE) {
+            return toHue;
+        }
+
+        long elapsed = nowMillis - rampStart;
+        if (intervalMillis <= 0 || elapsed >= intervalMillis) {
+            return toHue;
+        }
+        return fromHue + (int) ((toHue - fromHue) * elapsed / intervalMillis);
+    }
+
+    /**
+     * Estimated time between two sensor samples, 0 if unknown
+     */
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public void reset() {
+        fromHue = NO_HUE;
+        toHue = NO_HUE;
+        intervalMillis = 0;
+    }
+}
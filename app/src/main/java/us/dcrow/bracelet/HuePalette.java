@@ -0,0 +1,153 @@
+package us.dcrow.bracelet;
+
+/**
+ * Precomputed hue to RGB table.
+ * Holds one packed 0xRRGGBB color for every integer hue from 0 to 360, so mapping a sensor value
+ * to a color is a single array lookup instead of an HSV conversion per sample.
+ */
+public class HuePalette {
+
+    /**
+     * Number of entries, hues 0 to 360 inclusive
+     */
+    public static final int HUE_COUNT = 361;
+
+    /**
+     * Size of a color frame sent to the Bracelet: red, green, blue, brightness
+     */
+    public static final int FRAME_SIZE = 4;
+
+    /**
+     * Full saturation and value color wheel, matches Color.HSVToColor(new float[] {hue, 1, 1})
+     */
+    private static final HuePalette RAINBOW = new HuePalette(rainbowColors());
+
+    /**
+     * Packed 0xRRGGBB colors indexed by hue
+     */
+    private final int[] colors;
+
+    private HuePalette(int[] colors) {
+        this.colors = colors;
+    }
+
+    /**
+     * The full color wheel, used by default.
+     */
+    public static HuePalette rainbow() {
+        return RAINBOW;
+    }
+
+    /**
+     * Builds a palette blending linearly through the given 0xRRGGBB colors,
+     * the first one at hue 0 and the last one at hue 360.
+     */
+    public static HuePalette gradient(int... stops) {
+        if (stops.length == 0) {
+            throw new IllegalArgumentException("A gradient needs at least one color");
+        }
+
+        int[] colors = new int[HUE_COUNT];
+        if (stops.length == 1) {
+            for (int hue = 0; hue < HUE_COUNT; hue++) {
+                colors[hue] = stops[0] & 0xFFFFFF;
+            }
+            return new HuePalette(colors);
+        }
+
+        int segments = stops.length - 1;
+        for (int hue = 0; hue < HUE_COUNT; hue++) {
+            // Position along the gradient, in 1/360 of a segment
+            int position = hue * segments;
+            int segment = Math.min(position / (HUE_COUNT - 1), segments - 1);
+            int offset = position - segment * (HUE_COUNT - 1);
+
+            colors[hue] = blend(stops[segment], stops[segment + 1], offset, HUE_COUNT - 1);
+        }
+        return new HuePalette(colors);
+    }
+
+    /**
+     * Builds a palette from an explicit table of HUE_COUNT packed 0xRRGGBB colors.
+     */
+    public static HuePalette fromColors(int[] colors) {
+        if (colors.length != HUE_COUNT) {
+            throw new IllegalArgumentException("A palette needs " + HUE_COUNT + " colors, got " + colors.length);
+        }
+        int[] copy = new int[HUE_COUNT];
+        for (int hue = 0; hue < HUE_COUNT; hue++) {
+            copy[hue] = colors[hue] & 0xFFFFFF;
+        }
+        return new HuePalette(copy);
+    }
+
+    /**
+     * Packed 0xRRGGBB color for a hue, hues outside 0 to 360 are clamped.
+     */
+    public int color(int hue) {
+        if (hue < 0) {
+            return colors[0];
+        }
+        if (hue >= HUE_COUNT) {
+            return colors[HUE_COUNT - 1];
+        }
+        return colors[hue];
+    }
+
+    /**
+     * Writes the color for a hue and the brightness into the first FRAME_SIZE bytes of frame.
+     */
+    public void writeFrame(int hue, int brightness, byte[] frame) {
+        writeColorFrame(color(hue), brightness, frame);
+    }
+
+    /**
+     * Writes a packed 0xRRGGBB color and the brightness into the first FRAME_SIZE bytes of frame.
+     */
+    public static void writeColorFrame(int color, int brightness, byte[] frame) {
+        frame[0] = (byte) (color >> 16);
+        frame[1] = (byte) (color >> 8);
+        frame[2] = (byte) color;
+        frame[3] = (byte) brightness;
+    }
+
+    private static int blend(int from, int to, int weight, int scale) {
+        int r = blendChannel(from >> 16 & 0xFF, to >> 16 & 0xFF, weight, scale);
+        int g = blendChannel(from >> 8 & 0xFF, to >> 8 & 0xFF, weight, scale);
+        int b = blendChannel(from & 0xFF, to & 0xFF, weight, scale);
+        return r << 16 | g << 8 | b;
+    }
+
+    private static int blendChannel(int from, int to, int weight, int scale) {
+        return from + Math.round((to - from) * (float) weight / scale);
+    }
+
+    /**
+     * Same conversion as Skia's SkHSVToColor (behind Color.HSVToColor) at full saturation and value.
+     */
+    private static int[] rainbowColors() {
+        int[] colors = new int[HUE_COUNT];
+        for (int hue = 0; hue < HUE_COUNT; hue++) {
+            float hx = hue >= 360 ? 0 : hue / 60f;
+            int sector = (int) Math.floor(hx);
+            float f = hx - sector;
+
+            int v = 255;
+            int p = 0;
+            int q = Math.round((1 - f) * 255);
+            int t = Math.round(f * 255);
+
+            int r, g, b;
+            switch (sector) {
+                case 0: r = v; g = t; b = p; break;
+                case 1: r = q; g = v; b = p; break;
+                case 2: r = p; g = v; b = t; break;
+                case 3: r = p; g = q; b = v; break;
+                case 4: r = t; g = p; b = v; break;
+                default: r = v; g = p; b = q; break;
+            }
+            colors[hue] = r << 16 | g << 8 | b;
+        }
+        return colors;
+    }
+}
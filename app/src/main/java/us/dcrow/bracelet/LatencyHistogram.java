@@ -0,0 +1,103 @@
+package us.dcrow.bracelet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds, laid out like HdrHistogram.
+ * Each power of two range is split into SUB_BUCKET_COUNT linear buckets, which bounds the relative error
+ * of the reported values to about 3% whatever the magnitude. Recording is a couple of atomic increments,
+ * safe from any number of threads; reads are a consistent enough snapshot for monitoring.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Linear buckets per power of two, 2^SUB_BUCKET_BITS
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values are clamped under 2^HIGHEST_BIT nanoseconds, about 68 seconds
+     */
+    private static final int HIGHEST_BIT = 36;
+    private static final long HIGHEST_TRACKABLE_VALUE = (1L << HIGHEST_BIT) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(bucketIndex(HIGHEST_TRACKABLE_VALUE) + 1);
+
+    private final AtomicLong totalCount = new AtomicLong();
+
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Adds a latency, negative values count as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, HIGHEST_TRACKABLE_VALUE));
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.incrementAndGet();
+
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Latency under which the given percentage of the recorded values fall, 0 if nothing was recorded.
+     * Reported as the top of its bucket, never above the max.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueInBucket(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        maxValue.set(0);
+    }
+
+    /**
+     * Values under 2 * SUB_BUCKET_COUNT have a bucket each, above that every power of two
+     * is split into SUB_BUCKET_COUNT buckets.
+     */
+    static int bucketIndex(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    static long highestValueInBucket(int index) {
+        int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+        long mantissa = index - (shift << SUB_BUCKET_BITS);
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "p50 " + getValueAtPercentile(50) + "ns, p99 " + getValueAtPercentile(99) + "ns, max " + getMax()
+                + "ns over " + getCount() + " samples";
+    }
+}
@@ -0,0 +1,42 @@
+package us.dcrow.bracelet;
+
+/**
+ * Shows one sensor, the leader, on all the Bracelets, e.g. a teacher guiding the group.
+ * The first sensor leads when the leader is not connected.
+ */
+public class LeaderAggregator implements SensorAggregator {
+
+    private volatile int leader;
+
+    public LeaderAggregator(int leader) {
+        setLeader(leader);
+    }
+
+    /**
+     * Index of the leading sensor, in connection order
+     */
+    public void setLeader(int leader) {
+        if (leader < 0) {
+            throw new IllegalArgumentException("Leader out of range: " + leader);
+        }
+        this.leader = leader;
+    }
+
+    public int getLeader() {
+        return leader;
+    }
+
+    @Override
+    public int getGroupCount(int sensorCount) {
+        return 1;
+    }
+
+    @Override
+    public int aggregate(int[] hues, boolean[] updated, int sensorCount, int group) {
+        if (sensorCount == 0) {
+            return UNCHANGED;
+        }
+        int sensor = leader < sensorCount ? leader : 0;
+        return updated[sensor] ? hues[sensor] : UNCHANGED;
+    }
+}
@@ -0,0 +1,137 @@
+package us.dcrow.bracelet;
+
+/**
+ * Decodes the notifications of the Mantra receive characteristic into breathing sensor samples.
+ * Current firmware sends a single uint8 sample per notification. Framed packets carry several samples:
+ * <pre>
+ * byte 0        header, FLAG_* bits
+ * [1 byte]      sequence number, if FLAG_SEQUENCE
+ * [2 bytes]     time between samples in milliseconds, little endian, if FLAG_TIMESTAMP
+ * n bytes       uint8 samples, oldest first
+ * </pre>
+ * Samples are decoded into a reused array, nothing is allocated per notification.
+ * Not thread safe, owned by the thread delivering the notifications.
+ */
+public class MantraPacketDecoder {
+
+    /**
+     * A sequence number follows the header
+     */
+    public static final int FLAG_SEQUENCE = 0x80;
+
+    /**
+     * A sample interval follows the header and sequence number
+     */
+    public static final int FLAG_TIMESTAMP = 0x40;
+
+    /**
+     * Set in every framed packet, tells a framed packet from a single sample
+     */
+    public static final int FLAG_FRAMED = 0x20;
+
+    /**
+     * Returned by getSampleInterval when the packet did not carry one
+     */
+    public static final int NO_INTERVAL = -1;
+
+    /**
+     * Largest notification payload, ATT MTU 512 minus the 3 bytes header
+     */
+    private static final int MAX_PACKET_SIZE = 509;
+
+    private final int[] samples = new int[MAX_PACKET_SIZE];
+
+    private int sampleInterval = NO_INTERVAL;
+
+    private int lastSequence = -1;
+
+    /**
+     * Packets missing from the sequence numbers seen so far
+     */
+    private long lostPackets;
+
+    /**
+     * Packets that could not be decoded
+     */
+    private long malformedPackets;
+
+    /**
+     * Decodes a notification, returns the number of samples now in getSamples.
+     */
+    public int decode(byte[] packet) {
+        sampleInterval = NO_INTERVAL;
+        if (packet == null || packet.length == 0) {
+            malformedPackets++;
+            return 0;
+        }
+
+        // Current firmware, one uint8 sample
+        if (packet.length == 1) {
+            samples[0] = packet[0] & 0xFF;
+            return 1;
+        }
+
+        int header = packet[0] & 0xFF;
+        if ((header & FLAG_FRAMED) == 0) {
+            malformedPackets++;
+            return 0;
+        }
+
+        int offset = 1;
+        if ((header & FLAG_SEQUENCE) != 0) {
+            if (offset >= packet.length) {
+                malformedPackets++;
+                return 0;
+            }
+            int sequence = packet[offset++] & 0xFF;
+            if (lastSequence >= 0) {
+                lostPackets += (sequence - lastSequence - 1) & 0xFF;
+            }
+            lastSequence = sequence;
+        }
+        if ((header & FLAG_TIMESTAMP) != 0) {
+            if (offset + 2 > packet.length) {
+                malformedPackets++;
+                return 0;
+            }
+            sampleInterval = (packet[offset] & 0xFF) | (packet[offset + 1] & 0xFF) << 8;
+            offset += 2;
+        }
+
+        int count = Math.min(packet.length - offset, samples.length);
+        for (int i = 0; i < count; i++) {
+            samples[i] = packet[offset + i] & 0xFF;
+        }
+        return count;
+    }
+
+    /**
+     * Samples of the last decoded packet, valid until the next call to decode
+     */
+    public int[] getSamples() {
+        return samples;
+    }
+
+    /**
+     * Time between the samples of the last decoded packet in milliseconds, NO_INTERVAL if it did not say
+     */
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    public long getLostPackets() {
+        return lostPackets;
+    }
+
+    public long getMalformedPackets() {
+        return malformedPackets;
+    }
+
+    /**
+     * Forgets the sequence number, e.g. on a new connection.
+     */
+    public void reset() {
+        lastSequence = -1;
+        sampleInterval = NO_INTERVAL;
+    }
+}
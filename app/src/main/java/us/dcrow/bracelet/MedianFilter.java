@@ -0,0 +1,192 @@
+package us.dcrow.bracelet;
+
+/**
+ * Streaming median over the last N samples.
+ * Uses two indexed heaps, a max-heap holding the lower half of the window and a min-heap holding
+ * the upper half, so that the expiring sample can be removed in O(log N) and nothing is allocated.
+ * Rejects short spikes that a moving average would smear into the output.
+ */
+public class MedianFilter implements SignalFilter {
+
+    private static final int LOW = 0;
+    private static final int HIGH = 1;
+
+    /**
+     * Sample values, indexed by window slot
+     */
+    private final int[] values;
+
+    /**
+     * Heap (LOW or HIGH) and position inside that heap for each window slot
+     */
+    private final int[] heapOf;
+    private final int[] positionOf;
+
+    /**
+     * Slots of the lower half (max-heap) and of the upper half (min-heap)
+     */
+    private final int[] low;
+    private final int[] high;
+    private int lowSize;
+    private int highSize;
+
+    /**
+     * Next slot to write and number of valid samples
+     */
+    private int head;
+    private int count;
+
+    public MedianFilter(int width) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("Filter width must be at least one sample");
+        }
+        values = new int[width];
+        heapOf = new int[width];
+        positionOf = new int[width];
+        low = new int[width];
+        high = new int[width];
+    }
+
+    @Override
+    public int filter(int sample) {
+        int slot = head;
+
+        if (count == values.length) {
+            remove(slot);
+        } else {
+            count++;
+        }
+
+        values[slot] = sample;
+        insert(slot);
+
+        head++;
+        if (head == values.length) {
+            head = 0;
+        }
+
+        return median();
+    }
+
+    @Override
+    public void reset() {
+        lowSize = 0;
+        highSize = 0;
+        head = 0;
+        count = 0;
+    }
+
+    public int getWidth() {
+        return values.length;
+    }
+
+    /**
+     * Median of the window, for an even number of samples the mean of the two middle ones
+     */
+    private int median() {
+        if (lowSize > highSize) {
+            return values[low[0]];
+        }
+        return (int) (((long) values[low[0]] + values[high[0]]) / 2);
+    }
+
+    private void insert(int slot) {
+        if (lowSize == 0 || values[slot] <= values[low[0]]) {
+            push(LOW, slot);
+        } else {
+            push(HIGH, slot);
+        }
+        rebalance();
+    }
+
+    private void remove(int slot) {
+        int heap = heapOf[slot];
+        int position = positionOf[slot];
+        int[] slots = heap == LOW ? low : high;
+        int last = heap == LOW ? --lowSize : --highSize;
+
+        if (position != last) {
+            int moved = slots[last];
+            place(heap, moved, position);
+            siftUp(heap, position);
+            siftDown(heap, positionOf[moved]);
+        }
+        rebalance();
+    }
+
+    /**
+     * Keeps lowSize == highSize or lowSize == highSize + 1
+     */
+    private void rebalance() {
+        if (lowSize > highSize + 1) {
+            push(HIGH, pop(LOW));
+        } else if (highSize > lowSize) {
+            push(LOW, pop(HIGH));
+        }
+    }
+
+    private void push(int heap, int slot) {
+        int position = heap == LOW ? lowSize++ : highSize++;
+        place(heap, slot, position);
+        siftUp(heap, position);
+    }
+
+    private int pop(int heap) {
+        int[] slots = heap == LOW ? low : high;
+        int top = slots[0];
+        int last = heap == LOW ? --lowSize : --highSize;
+        if (last > 0) {
+            place(heap, slots[last], 0);
+            siftDown(heap, 0);
+        }
+        return top;
+    }
+
+    private void siftUp(int heap, int position) {
+        int[] slots = heap == LOW ? low : high;
+        int slot = slots[position];
+        while (position > 0) {
+            int parent = (position - 1) >> 1;
+            if (!above(heap, slot, slots[parent])) {
+                break;
+            }
+            place(heap, slots[parent], position);
+            position = parent;
+        }
+        place(heap, slot, position);
+    }
+
+    private void siftDown(int heap, int position) {
+        int[] slots = heap == LOW ? low : high;
+        int size = heap == LOW ? lowSize : highSize;
+        int slot = slots[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && above(heap, slots[child + 1], slots[child])) {
+                child++;
+            }
+            if (!above(heap, slots[child], slot)) {
+                break;
+            }
+            place(heap, slots[child], position);
+            position = child;
+        }
+        place(heap, slot, position);
+    }
+
+    /**
+     * Tells if slot a belongs closer to the top of the heap than slot b
+     */
+    private boolean above(int heap, int a, int b) {
+        return heap == LOW ? values[a] > values[b] : values[a] < values[b];
+    }
+
+    private void place(int heap, int slot, int position) {
+        (heap == LOW ? low : high)[position] = slot;
+        heapOf[slot] = heap;
+        positionOf[slot] = position;
+    }
+}
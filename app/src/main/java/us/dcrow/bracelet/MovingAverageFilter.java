@@ -0,0 +1,67 @@
+package us.dcrow.bracelet;
+
+/**
+ * Boxcar moving average over the last N samples.
+ * Keeps a running sum over a primitive ring buffer so each sample costs O(1) and allocates nothing.
+ * Until the window is full the average is taken over the samples seen so far.
+ */
+public class MovingAverageFilter implements SignalFilter {
+
+    /**
+     * Last samples, oldest one at position head once the window is full
+     */
+    private final int[] window;
+
+    /**
+     * Sum of the samples currently in the window
+     */
+    private long sum;
+
+    /**
+     * Next position to write and number of valid samples
+     */
+    private int head;
+    private int count;
+
+    public MovingAverageFilter(int width) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("Filter width must be at least one sample");
+        }
+        window = new int[width];
+    }
+
+    /**
+     * Adds a sample and returns the average of the window, truncated towards zero.
+     */
+    @Override
+    public int filter(int sample) {
+        if (count == window.length) {
+            sum -= window[head];
+        } else {
+            count++;
+        }
+        window[head] = sample;
+        sum += sample;
+
+        head++;
+        if (head == window.length) {
+            head = 0;
+        }
+
+        return (int) (sum / count);
+    }
+
+    public int getWidth() {
+        return window.length;
+    }
+
+    /**
+     * Forgets all samples.
+     */
+    @Override
+    public void reset() {
+        sum = 0;
+        head = 0;
+        count = 0;
+    }
+}
@@ -0,0 +1,47 @@
+package us.dcrow.bracelet;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the address of the last peripheral of each kind we connected to,
+ * so the next connection can go straight to connectGatt without scanning first.
+ */
+public class PeripheralAddressCache {
+
+    /**
+     * Name of the shared preferences file holding the addresses
+     */
+    private static final String PREFERENCES_NAME = "peripheral_addresses";
+
+    private final SharedPreferences preferences;
+
+    public PeripheralAddressCache(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Last known address of the peripheral with the given name, null if unknown.
+     */
+    public String getAddress(String deviceName) {
+        String address = preferences.getString(deviceName, null);
+        if (address != null && !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return null;
+        }
+        return address;
+    }
+
+    public void putAddress(String deviceName, String address) {
+        if (!address.equals(preferences.getString(deviceName, null))) {
+            preferences.edit().putString(deviceName, address).apply();
+        }
+    }
+
+    /**
+     * Forgets the address, e.g. when the peripheral was replaced.
+     */
+    public void removeAddress(String deviceName) {
+        preferences.edit().remove(deviceName).apply();
+    }
+}
@@ -0,0 +1,82 @@
+package us.dcrow.bracelet;
+
+/**
+ * Connection to a peripheral, as seen by the service: a stream of notifications and a characteristic to write.
+ * GattPeripheralLink talks to a real device, SimulatedMantra and SimulatedBracelet stand in for the
+ * hardware on a plain JVM.
+ */
+public interface PeripheralLink {
+
+    /**
+     * Write statuses, same values as BluetoothGatt.GATT_SUCCESS and GATT_FAILURE.
+     * GattOperationQueue.STATUS_* may show up as well.
+     */
+    int STATUS_SUCCESS = 0;
+    int STATUS_FAILURE = 0x101;
+
+    /**
+     * Told about the link events, called from the thread delivering them (e.g. a binder thread)
+     */
+    interface Listener {
+        /**
+         * Connected, the link is being set up. onReady follows unless the connection drops first.
+         */
+        void onConnected(PeripheralLink link);
+
+        /**
+         * Connected and set up, notifications and writes may start.
+         */
+        void onReady(PeripheralLink link);
+
+        /**
+         * Connection lost or failed. The link may be connected again.
+         */
+        void onDisconnected(PeripheralLink link);
+
+        /**
+         * Value of the notified characteristic, only valid during the call.
+         */
+        void onNotification(PeripheralLink link, byte[] value);
+
+        /**
+         * Completion of a write started with write.
+         */
+        void onWriteComplete(PeripheralLink link, int status);
+    }
+
+    String getName();
+
+    String getAddress();
+
+    void setListener(Listener listener);
+
+    /**
+     * Starts connecting, see BluetoothDevice.connectGatt for autoConnect.
+     */
+    void connect(boolean autoConnect);
+
+    void disconnect();
+
+    /**
+     * Releases the link, it cannot be connected again.
+     */
+    void close();
+
+    boolean isReady();
+
+    /**
+     * Starts writing a value to the peripheral, returns false if the write was refused.
+     * The value must be left untouched until onWriteComplete.
+     */
+    boolean write(byte[] value);
+
+    /**
+     * Asks for one of the ConnectionProfile.PRIORITY_* connection intervals, ignored where unsupported.
+     */
+    void requestConnectionPriority(int priority);
+
+    /**
+     * Negotiated link parameters
+     */
+    ConnectionProfile getConnectionProfile();
+}
@@ -2,44 +2,456 @@ package us.dcrow.bracelet;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * Created by dcrow on 8/7/15.
+ * Finds, connects and sets up the peripherals described by PeripheralProfiles, any number of them per profile.
+ * Connects straight to the last known address of a profile when there is one and falls back to the shared
+ * ScanSession, caches the address of each device once it is ready, and replaces the link of a device found again.
+ * What to do with the links and their data is left to the Client registered with each profile.
  */
 public class PeripheralManager {
-    public static final int REQUEST_ENABLE_BT = 1;
-    public static final int BRACELET_REQUEST = 2;
-    public static final int SENSOR_REQUEST = 3;
 
-    protected BluetoothManager btManager;
-    protected BluetoothAdapter btAdapter;
+    /**
+     * Owner of the peripherals of a profile
+     */
+    public interface Client {
+        /**
+         * A link to a device of the profile was created and is about to connect.
+         * Returns the listener for its events, called from the thread delivering them.
+         */
+        PeripheralLink.Listener onLinkCreated(PeripheralProfile profile, PeripheralLink link);
+
+        /**
+         * The manager closed a link: its device was found again, it could not be set up, or the direct connection
+         * to it gave up.
+         */
+        void onLinkRemoved(PeripheralProfile profile, PeripheralLink link);
+
+        /**
+         * No more device of the profile was found in time, called on the manager handler.
+         */
+        void onScanTimeout(PeripheralProfile profile);
+
+        /**
+         * The manager went back to scanning after a link could not be set up, called on the manager handler.
+         */
+        void onScanRestarted(PeripheralProfile profile);
+    }
+
+    /**
+     * Stands up links without the radio, e.g. SimulatedMantra and SimulatedBracelet
+     */
+    public interface LinkFactory {
+        /**
+         * Creates the link to the device of the profile with the given index, counting from 0.
+         */
+        PeripheralLink createLink(PeripheralProfile profile, int index);
+    }
+
+    /**
+     * Time allowed to connect to a cached address and set the link up before falling back to a scan
+     */
+    public static final long DIRECT_CONNECT_TIMEOUT = 5000;
+
+    /**
+     * Used for logging.
+     */
+    private static final String TAG = "Peripheral Manager";
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+
+    /**
+     * Runs the direct connection timeouts and the GATT operation timeouts
+     */
+    private final Handler handler;
+
+    private final ScanSession scanSession;
+    private final PeripheralAddressCache addressCache;
+
+    /**
+     * Characteristics of the devices seen since the manager was created, by address
+     */
+    private final GattHandleCache handleCache = new GattHandleCache();
+
+    /**
+     * Registered profiles
+     */
+    private final HashMap<PeripheralProfile, Peripherals> peripherals = new HashMap<PeripheralProfile, Peripherals>();
+
+    /**
+     * Creates the links instead of scanning when set
+     */
+    private volatile LinkFactory linkFactory;
+
+    public PeripheralManager(Context context, BluetoothAdapter bluetoothAdapter, Handler handler,
+                             ScanSession scanSession, PeripheralAddressCache addressCache) {
+        this.context = context;
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.handler = handler;
+        this.scanSession = scanSession;
+        this.addressCache = addressCache;
+    }
+
+    /**
+     * Declares a type of peripheral and who gets its links. A profile is registered once.
+     */
+    public synchronized void register(PeripheralProfile profile, Client client) {
+        if (peripherals.containsKey(profile)) {
+            throw new IllegalStateException(profile + " is already registered");
+        }
+        peripherals.put(profile, new Peripherals(profile, client));
+
+        // The hardware scan filters take a single service, only used while every profile shares it
+        UUID serviceUuid = profile.getServiceUuid();
+        for (PeripheralProfile registered : peripherals.keySet()) {
+            if (!registered.getServiceUuid().equals(serviceUuid)) {
+                serviceUuid = null;
+                break;
+            }
+        }
+        scanSession.setServiceUuid(serviceUuid);
+    }
+
+    /**
+     * Creates the links with the factory instead of scanning, null to go back to the real devices.
+     * Takes effect on the next connect.
+     */
+    public void setLinkFactory(LinkFactory linkFactory) {
+        this.linkFactory = linkFactory;
+    }
+
+    /**
+     * Connects up to count devices of the profile, the ones already linked count and are connected again
+     * if they dropped. Scans until that many were found or the scan timed out.
+     */
+    public void connect(PeripheralProfile profile, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException(profile + " count out of range: " + count);
+        }
+        get(profile).connect(count);
+    }
+
+    /**
+     * Stops looking for devices of the profile and gives up on a pending direct connection, the links that fail
+     * to set up are not replaced anymore. The links already set up are kept.
+     */
+    public void cancel(PeripheralProfile profile) {
+        get(profile).cancel();
+    }
+
+    /**
+     * Disconnects every link of the profile. The links are kept and may connect again.
+     */
+    public void disconnect(PeripheralProfile profile) {
+        for (PeripheralLink link : get(profile).getLinks()) {
+            link.disconnect();
+        }
+    }
+
+    /**
+     * Links of the profile, in creation order
+     */
+    public List<PeripheralLink> getLinks(PeripheralProfile profile) {
+        return get(profile).getLinks();
+    }
+
+    /**
+     * Stops every scan and disconnects every link.
+     */
+    public void stop() {
+        scanSession.stop();
+        for (Peripherals registered : getRegistered()) {
+            registered.wanted = 0;
+            registered.giveUpDirectConnect(false);
+            for (PeripheralLink link : registered.getLinks()) {
+                link.disconnect();
+            }
+        }
+    }
+
+    private synchronized Peripherals get(PeripheralProfile profile) {
+        Peripherals registered = peripherals.get(profile);
+        if (registered == null) {
+            throw new IllegalArgumentException(profile + " is not registered");
+        }
+        return registered;
+    }
+
+    private synchronized List<Peripherals> getRegistered() {
+        return new ArrayList<Peripherals>(peripherals.values());
+    }
+
+    /**
+     * The links of a profile and the search for more of its devices
+     */
+    private class Peripherals implements ScanSession.Target {
+
+        final PeripheralProfile profile;
+        final Client client;
+
+        final CopyOnWriteArrayList<ManagedLink> links = new CopyOnWriteArrayList<ManagedLink>();
+
+        /**
+         * Number of devices to connect, the scan goes on until that many were found
+         */
+        volatile int wanted = 1;
+
+        /**
+         * Link to the cached address while we wait for it to answer, null if none
+         */
+        private PeripheralLink directLink;
+
+        /**
+         * Gives up on the cached address and scans instead.
+         */
+        final Runnable directConnectTimeout = new Runnable() {
+            @Override
+            public void run() {
+                giveUpDirectConnect(true);
+            }
+        };
+
+        Peripherals(PeripheralProfile profile, Client client) {
+            this.profile = profile;
+            this.client = client;
+        }
+
+        void connect(int count) {
+            wanted = count;
+
+            // Reuses the links we have, a GattPeripheralLink then skips the service discovery
+            for (ManagedLink managed : links) {
+                if (!managed.link.isReady()) {
+                    managed.link.connect(false);
+                }
+            }
+
+            LinkFactory factory = linkFactory;
+            if (factory != null) {
+                for (int i = links.size(); i < count; i++) {
+                    add(factory.createLink(profile, i), false);
+                }
+                return;
+            }
+            if (links.size() >= count) {
+                return;
+            }
+
+            String address = links.isEmpty() ? addressCache.getAddress(profile.getName()) : null;
+            if (address != null) {
+                // Skip the scan, falls back to it after DIRECT_CONNECT_TIMEOUT
+                Log.d(TAG, "Connecting directly to last known " + profile + " " + address);
+                PeripheralLink link = createLink(bluetoothAdapter.getRemoteDevice(address));
+                synchronized (this) {
+                    directLink = link;
+                }
+                add(link, false);
+                handler.postDelayed(directConnectTimeout, DIRECT_CONNECT_TIMEOUT);
+                if (links.size() < count) {
+                    // The cached address is a single device, scan for the others of the group meanwhile
+                    scanSession.request(profile.getName(), this);
+                }
+            } else {
+                // The scan stops by itself after its timeout, see onScanTimeout
+                scanSession.request(profile.getName(), this);
+            }
+        }
+
+        void cancel() {
+            Log.d(TAG, profile + " scanning manually stopped");
+            wanted = 0;
+            scanSession.cancel(profile.getName());
+            giveUpDirectConnect(false);
+        }
+
+        /**
+         * Closes the link to the cached address if it is still pending, then scans if asked to.
+         */
+        void giveUpDirectConnect(boolean scan) {
+            handler.removeCallbacks(directConnectTimeout);
+            PeripheralLink link;
+            synchronized (this) {
+                link = directLink;
+                directLink = null;
+            }
+            if (link == null) {
+                return;
+            }
+            remove(link);
+            if (scan) {
+                Log.d(TAG, "Direct connection to " + profile + " failed, scanning instead");
+                restartScan();
+            }
+        }
+
+        /**
+         * Drops a link that disconnected before it was set up, and scans for another device if we are short of one.
+         */
+        void replace(final PeripheralLink link) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    remove(link);
+                    if (links.size() < wanted && linkFactory == null) {
+                        Log.d(TAG, profile + " " + link.getAddress() + " could not be set up, scanning again");
+                        restartScan();
+                    }
+                }
+            });
+        }
+
+        void restartScan() {
+            scanSession.request(profile.getName(), this);
+            client.onScanRestarted(profile);
+        }
+
+        /**
+         * Called once the link is set up, it stays whatever happens to it next
+         */
+        synchronized void onDirectConnectReady(PeripheralLink link) {
+            if (directLink == link) {
+                directLink = null;
+                handler.removeCallbacks(directConnectTimeout);
+            }
+        }
+
+        synchronized boolean isDirectConnectPending(PeripheralLink link) {
+            return directLink == link;
+        }
+
+        PeripheralLink createLink(BluetoothDevice device) {
+            return new GattPeripheralLink(context, device, profile, handler, handleCache);
+        }
+
+        void add(PeripheralLink link, boolean autoConnect) {
+            // A device found again replaces its old link
+            for (ManagedLink previous : links) {
+                if (previous.link.getAddress().equals(link.getAddress())) {
+                    remove(previous.link);
+                }
+            }
+
+            ManagedLink managed = new ManagedLink(this, link, client.onLinkCreated(profile, link));
+            links.add(managed);
+            link.setListener(managed);
+            link.connect(autoConnect);
+        }
+
+        void remove(PeripheralLink link) {
+            for (ManagedLink managed : links) {
+                if (managed.link == link && links.remove(managed)) {
+                    link.close();
+                    client.onLinkRemoved(profile, link);
+                }
+            }
+        }
+
+        boolean contains(String address) {
+            for (ManagedLink managed : links) {
+                if (managed.link.getAddress().equals(address)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        List<PeripheralLink> getLinks() {
+            List<PeripheralLink> result = new ArrayList<PeripheralLink>(links.size());
+            for (ManagedLink managed : links) {
+                result.add(managed.link);
+            }
+            return result;
+        }
+
+        @Override
+        public void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            // A linked device keeps advertising until its autoConnect connection completes, it is ignored.
+            // The session does not show it again to the request below.
+            if (!contains(device.getAddress())) {
+                Log.d(TAG, "Found " + profile + " trying to connect to " + device.getAddress());
+                add(createLink(device), true);
+            }
+            if (links.size() < wanted) {
+                // Keep looking for the other devices of the group, the scan keeps running
+                scanSession.request(profile.getName(), this);
+            }
+        }
+
+        @Override
+        public void onScanTimeout() {
+            client.onScanTimeout(profile);
+        }
+    }
+
+    /**
+     * Keeps track of a link for its profile, then hands its events to the client listener
+     */
+    private class ManagedLink implements PeripheralLink.Listener {
+
+        final Peripherals peripherals;
+        final PeripheralLink link;
+        final PeripheralLink.Listener listener;
+
+        /**
+         * Tells if the link got ready since it last connected
+         */
+        volatile boolean setUp;
+
+        ManagedLink(Peripherals peripherals, PeripheralLink link, PeripheralLink.Listener listener) {
+            this.peripherals = peripherals;
+            this.link = link;
+            this.listener = listener;
+        }
 
-    private BluetoothAdapter.LeScanCallback leScanCallback = new BluetoothAdapter.LeScanCallback() {
         @Override
-        public void onLeScan(final BluetoothDevice device, final int rssi, final byte[] scanRecord) {
-            // your implementation here
+        public void onConnected(PeripheralLink link) {
+            setUp = false;
+            listener.onConnected(link);
         }
-    };
 
-    private final BluetoothGattCallback btleGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onReady(PeripheralLink link) {
+            setUp = true;
+            peripherals.onDirectConnectReady(link);
+
+            //Now we assume that the device is fully connected
+            if (!(link instanceof SimulatedPeripheralLink)) {
+                addressCache.putAddress(peripherals.profile.getName(), link.getAddress());
+            }
+            listener.onReady(link);
+        }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
-            // this will get called anytime you perform a read or write characteristic operation
+        public void onDisconnected(PeripheralLink link) {
+            if (peripherals.isDirectConnectPending(link)) {
+                // The cached address did not answer, scan right away
+                handler.removeCallbacks(peripherals.directConnectTimeout);
+                handler.post(peripherals.directConnectTimeout);
+            } else if (!setUp) {
+                peripherals.replace(link);
+            }
+            setUp = false;
+            listener.onDisconnected(link);
         }
 
         @Override
-        public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
-            // this will get called when a device connects or disconnects
+        public void onNotification(PeripheralLink link, byte[] value) {
+            listener.onNotification(link, value);
         }
 
         @Override
-        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
-            // this will get called after the client initiates a            BluetoothGatt.discoverServices() call
+        public void onWriteComplete(PeripheralLink link, int status) {
+            listener.onWriteComplete(link, status);
         }
-    };
+    }
 }
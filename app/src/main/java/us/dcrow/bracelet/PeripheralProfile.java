@@ -0,0 +1,61 @@
+package us.dcrow.bracelet;
+
+import java.util.UUID;
+
+/**
+ * Declares a type of peripheral for the PeripheralManager: the advertised name it is found by, the service
+ * it exposes and the characteristics to get notifications from and to write to.
+ * What the bytes mean is left to the PeripheralManager.Client of the profile, e.g. a MantraPacketDecoder
+ * per link for the Mantra, since decoding keeps per connection state.
+ */
+public class PeripheralProfile {
+
+    private final String name;
+    private final UUID serviceUuid;
+    private final UUID notifyCharacteristicUuid;
+    private final UUID writeCharacteristicUuid;
+
+    /**
+     * @param name advertised name, also the key of the last known address
+     * @param notifyCharacteristicUuid characteristic to enable notifications on, null if none
+     * @param writeCharacteristicUuid characteristic written by PeripheralLink.write, null if none
+     */
+    public PeripheralProfile(String name, UUID serviceUuid, UUID notifyCharacteristicUuid,
+                             UUID writeCharacteristicUuid) {
+        if (name == null || serviceUuid == null) {
+            throw new IllegalArgumentException("A profile needs a name and a service");
+        }
+        this.name = name;
+        this.serviceUuid = serviceUuid;
+        this.notifyCharacteristicUuid = notifyCharacteristicUuid;
+        this.writeCharacteristicUuid = writeCharacteristicUuid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public UUID getServiceUuid() {
+        return serviceUuid;
+    }
+
+    public UUID getNotifyCharacteristicUuid() {
+        return notifyCharacteristicUuid;
+    }
+
+    public UUID getWriteCharacteristicUuid() {
+        return writeCharacteristicUuid;
+    }
+
+    /**
+     * Tells if an advertised name is one of ours, names are matched without case like ScanSession does
+     */
+    public boolean matches(String advertisedName) {
+        return name.equalsIgnoreCase(advertisedName);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,80 @@
+package us.dcrow.bracelet;
+
+/**
+ * Latency of the path from a sensor notification to the Bracelet color, one histogram per stage.
+ * Every stage is measured from the time the sample arrived (SystemClock.elapsedRealtimeNanos in
+ * onCharacteristicChanged), so each histogram is the cumulative delay up to that point.
+ */
+public class PipelineLatency {
+
+    /**
+     * Sample calibrated and filtered into a hue by the processing thread, see BreathingMixer.process
+     */
+    public static final int STAGE_FILTERED = 0;
+
+    /**
+     * First frame of colors showing that hue rendered by the render loop, see BreathingMixer.renderTick
+     */
+    public static final int STAGE_COLOR_MAPPED = 1;
+
+    /**
+     * That frame handed to writeCharacteristic
+     */
+    public static final int STAGE_WRITE_STARTED = 2;
+
+    /**
+     * That write acknowledged in onCharacteristicWrite, the end to end latency
+     */
+    public static final int STAGE_WRITE_ACKNOWLEDGED = 3;
+
+    public static final int STAGE_COUNT = 4;
+
+    /**
+     * Origin timestamp meaning the value does not come from a sensor sample, e.g. a color set by hand
+     */
+    public static final long NO_ORIGIN = 0;
+
+    /**
+     * Time base of the origins, SystemClock.elapsedRealtimeNanos on the device
+     */
+    public interface Clock {
+        long nanoTime();
+    }
+
+    private final Clock clock;
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGE_COUNT];
+
+    public PipelineLatency(Clock clock) {
+        this.clock = clock;
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records that a sample received at originNanos reached a stage at nowNanos, ignored for NO_ORIGIN.
+     */
+    public void record(int stage, long originNanos, long nowNanos) {
+        if (originNanos != NO_ORIGIN) {
+            histograms[stage].record(nowNanos - originNanos);
+        }
+    }
+
+    /**
+     * Current time for record, from the clock the origins were taken with
+     */
+    public long now() {
+        return clock.nanoTime();
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return histograms[stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package us.dcrow.bracelet;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Feeds a recorded session through a SensorChannel and a BreathingMixer, the same code the service
+ * runs on the device, and reports the frames it would send to the Bracelets.
+ * Runs on a plain JVM, either as fast as possible on a simulated clock (the default, deterministic)
+ * or at the recorded speed. Samples recorded at the same time were received in one notification and are
+ * processed as one batch. Every frame is assumed to be acknowledged by the Bracelets right away.
+ *
+ * From the command line, see Replay in the benchmark module.
+ */
+public class ReplayEngine {
+
+    /**
+     * Receives the replayed frames
+     */
+    public interface Listener {
+        /**
+         * timeMillis is the session time, the frame is only valid during the call
+         */
+        void onFrame(long timeMillis, byte[] frame);
+    }
+
+    /**
+     * Size of the sensor's sample ring, same as the service
+     */
+    private static final int SAMPLE_BUFFER_SIZE = 256;
+
+    private int frameRate = BreathingRenderer.DEFAULT_FRAME_RATE;
+    private int brightness = 10;
+    private int dedupThreshold = FrameDeduplicator.DEFAULT_THRESHOLD;
+    private SignalFilter signalFilter;
+    private boolean realTime;
+
+    /**
+     * Replay state
+     */
+    private BreathingMixer mixer;
+    private long clockMillis;
+    private long wallClockStart;
+
+    public void setFrameRate(int framesPerSecond) {
+        frameRate = framesPerSecond;
+    }
+
+    public void setBrightness(int brightness) {
+        this.brightness = brightness;
+    }
+
+    public void setDedupThreshold(int threshold) {
+        dedupThreshold = threshold;
+    }
+
+    /**
+     * Smoothing to evaluate instead of the default moving average. The filter keeps state, so it must be
+     * fresh or reset before each replay.
+     */
+    public void setSignalFilter(SignalFilter filter) {
+        signalFilter = filter;
+    }
+
+    /**
+     * True to replay at the recorded speed, false (default) to replay as fast as possible
+     */
+    public void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+    /**
+     * Replays a session, returns the number of frames produced.
+     */
+    public long replay(File file, final Listener listener) throws IOException {
+        final long[] frameCount = new long[1];
+        mixer = new BreathingMixer(SAMPLE_BUFFER_SIZE, brightness, null, new BreathingMixer.FrameSink() {
+            @Override
+            public void onFrame(int group, byte[] frame, long originNanos) {
+                mixer.onFrameAcknowledged(group, frame, clockMillis);
+                frameCount[0]++;
+                listener.onFrame(clockMillis, frame);
+            }
+        });
+        mixer.setFrameRate(frameRate);
+        mixer.setDedupThreshold(dedupThreshold);
+        SampleRingBuffer samples = mixer.addSensor(null).getSampleBuffer();
+        if (signalFilter != null) {
+            mixer.setSignalFilter(0, signalFilter);
+        }
+
+        clockMillis = 0;
+        wallClockStart = System.nanoTime();
+
+        SessionReader reader = new SessionReader(file);
+        try {
+            long nextTick = BreathingMixer.STOPPED;
+            boolean inBatch = false;
+            long batchMicros = 0;
+
+            int tag;
+            while ((tag = reader.next()) != SessionRecorder.TAG_END) {
+                if (tag != SessionRecorder.TAG_SAMPLE) {
+                    // Recorded frames are what we are recomputing
+                    continue;
+                }
+
+                long micros = reader.getTimeMicros();
+                if (inBatch && micros != batchMicros) {
+                    nextTick = endBatch(batchMicros, nextTick);
+                    inBatch = false;
+                }
+                if (!inBatch) {
+                    nextTick = runTicks(nextTick, micros / 1000);
+                    inBatch = true;
+                    batchMicros = micros;
+                }
+                samples.offer(reader.getSample(), micros * 1000);
+            }
+
+            if (inBatch) {
+                nextTick = endBatch(batchMicros, nextTick);
+            }
+            // Until the render loop stops by itself
+            runTicks(nextTick, Long.MAX_VALUE);
+        } finally {
+            reader.close();
+            mixer = null;
+        }
+        return frameCount[0];
+    }
+
+    private long endBatch(long batchMicros, long nextTick) {
+        advanceTo(batchMicros / 1000);
+        if (mixer.process(clockMillis)) {
+            return clockMillis;
+        }
+        return nextTick;
+    }
+
+    /**
+     * Runs the render ticks due up to a time, returns the next one.
+     */
+    private long runTicks(long nextTick, long untilMillis) {
+        while (nextTick != BreathingMixer.STOPPED && nextTick <= untilMillis) {
+            advanceTo(nextTick);
+            nextTick = mixer.renderTick(clockMillis);
+        }
+        return nextTick;
+    }
+
+    private void advanceTo(long millis) {
+        clockMillis = millis;
+        if (!realTime) {
+            return;
+        }
+        long delay = millis - (System.nanoTime() - wallClockStart) / 1000000;
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                realTime = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package us.dcrow.bracelet;
+
+/**
+ * Gives each sensor its own group of Bracelets, e.g. one Bracelet per person.
+ * Group n shows sensor n, see BraceletPool for how the Bracelets are spread over the groups.
+ */
+public class RoutingAggregator implements SensorAggregator {
+
+    @Override
+    public int getGroupCount(int sensorCount) {
+        return Math.max(1, sensorCount);
+    }
+
+    @Override
+    public int aggregate(int[] hues, boolean[] updated, int sensorCount, int group) {
+        if (group >= sensorCount || !updated[group]) {
+            return UNCHANGED;
+        }
+        return hues[group];
+    }
+}
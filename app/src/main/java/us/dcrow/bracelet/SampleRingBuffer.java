@@ -0,0 +1,158 @@
+package us.dcrow.bracelet;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single producer, single consumer queue of int samples, each with the time it was received.
+ * The producer (a BLE binder thread) and the consumer (the processing thread) never block each other,
+ * and nothing is allocated once the buffer is built. When the consumer falls behind and the buffer
+ * is full, new samples are dropped and counted.
+ */
+public class SampleRingBuffer {
+
+    private final int[] samples;
+
+    /**
+     * Arrival time of each sample, SystemClock.elapsedRealtimeNanos
+     */
+    private final long[] timestamps;
+
+    /**
+     * capacity - 1, capacity being a power of two
+     */
+    private final int mask;
+
+    /**
+     * Next position to read, only advanced by the consumer
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Next position to write, only advanced by the producer
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Samples refused because the buffer was full
+     */
+    private final AtomicLong droppedSamples = new AtomicLong();
+
+    /**
+     * Local copies of the other side's position, saves reading the shared counter on every call
+     */
+    private long cachedHead;
+    private long cachedTail;
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    public SampleRingBuffer(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        samples = new int[size];
+        timestamps = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds a sample, producer side only. Returns false if the buffer is full.
+     */
+    public boolean offer(int sample, long timestampNanos) {
+        long position = tail.get();
+        if (position - cachedHead >= samples.length) {
+            cachedHead = head.get();
+            if (position - cachedHead >= samples.length) {
+                droppedSamples.incrementAndGet();
+                return false;
+            }
+        }
+        samples[(int) position & mask] = sample;
+        timestamps[(int) position & mask] = timestampNanos;
+        // Publishes the sample to the consumer
+        tail.lazySet(position + 1);
+        return true;
+    }
+
+    /**
+     * Adds the first count samples of an array in one go, all received at the same time, producer side only.
+     * The consumer sees the whole batch at once. Samples that do not fit are dropped and counted,
+     * returns the number of samples added.
+     */
+    public int offer(int[] batch, int count, long timestampNanos) {
+        return offer(batch, count, timestampNanos, 0);
+    }
+
+    /**
+     * Same as offer(batch, count, timestampNanos) for samples taken intervalNanos apart, the last one at
+     * timestampNanos: sample i is stamped timestampNanos - (count - 1 - i) * intervalNanos.
+     */
+    public int offer(int[] batch, int count, long timestampNanos, long intervalNanos) {
+        long position = tail.get();
+        long free = samples.length - (position - cachedHead);
+        if (free < count) {
+            cachedHead = head.get();
+            free = samples.length - (position - cachedHead);
+        }
+        int accepted = (int) Math.min(free, count);
+        for (int i = 0; i < accepted; i++) {
+            int index = (int) (position + i) & mask;
+            samples[index] = batch[i];
+            timestamps[index] = timestampNanos - (count - 1 - i) * intervalNanos;
+        }
+        if (accepted < count) {
+            droppedSamples.addAndGet(count - accepted);
+        }
+        if (accepted > 0) {
+            // Publishes the batch to the consumer
+            tail.lazySet(position + accepted);
+        }
+        return accepted;
+    }
+
+    /**
+     * Tells if a sample is available, consumer side only.
+     */
+    public boolean isEmpty() {
+        long position = head.get();
+        if (position >= cachedTail) {
+            cachedTail = tail.get();
+        }
+        return position >= cachedTail;
+    }
+
+    /**
+     * Arrival time of the oldest sample, the next one poll returns. Consumer side only, check isEmpty first.
+     */
+    public long peekTimestamp() {
+        return timestamps[(int) head.get() & mask];
+    }
+
+    /**
+     * Removes the oldest sample, consumer side only. Check isEmpty first.
+     */
+    public int poll() {
+        long position = head.get();
+        if (position >= cachedTail) {
+            cachedTail = tail.get();
+            if (position >= cachedTail) {
+                throw new IllegalStateException("Sample buffer is empty");
+            }
+        }
+        int sample = samples[(int) position & mask];
+        head.lazySet(position + 1);
+        return sample;
+    }
+
+    public int getCapacity() {
+        return samples.length;
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples.get();
+    }
+}
@@ -0,0 +1,447 @@
+package us.dcrow.bracelet;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * Single BLE scan shared by every peripheral we are looking for.
+ * Targets register the device name they want, results are routed to them through a name lookup
+ * built when they register. Each advertiser is only looked at once per scan, and the radio scan
+ * stops as soon as every requested peripheral is found or timed out.
+ *
+ * On API 21 and up the scan goes through BluetoothLeScanner with a ScanFilter per requested device,
+ * so the controller drops unrelated advertisers instead of waking the app for each of them.
+ * Older devices fall back to the BluetoothAdapter scan. Note that hardware name filters are case sensitive.
+ */
+public class ScanSession {
+
+    /**
+     * Receives the outcome of a scan request
+     */
+    public interface Target {
+        /**
+         * Called once, on a binder thread, when a device with the requested name advertises.
+         */
+        void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord);
+
+        /**
+         * Called on the session handler when no matching device was found in time.
+         */
+        void onScanTimeout();
+    }
+
+    /**
+     * Report every advertisement as soon as it is received, for the fastest connection
+     */
+    public static final int DELIVERY_LOW_LATENCY = 0;
+
+    /**
+     * Let the controller batch results and deliver them every BATCH_REPORT_DELAY, saves power on long scans.
+     * Only honored when the controller supports offloaded batching.
+     */
+    public static final int DELIVERY_BATCHED = 1;
+
+    /**
+     * Time the controller may hold batched results
+     */
+    private static final long BATCH_REPORT_DELAY = 1000;
+
+    /**
+     * Advertising data types holding the device name, see the Bluetooth Core Specification Supplement
+     */
+    private static final int AD_TYPE_SHORTENED_LOCAL_NAME = 0x08;
+    private static final int AD_TYPE_COMPLETE_LOCAL_NAME = 0x09;
+
+    /**
+     * Used for logging.
+     */
+    private static final String TAG = "Scan Session";
+
+    private final BluetoothAdapter bluetoothAdapter;
+
+    /**
+     * Runs the scan timeouts
+     */
+    private final Handler handler;
+
+    /**
+     * Time allowed to find each requested device
+     */
+    private final long scanTimeout;
+
+    /**
+     * Pending requests by device name, ignoring case. The hardware ScanFilters are case sensitive though,
+     * with filtered scanning a request only finds a device advertising its name with the same case.
+     */
+    private final TreeMap<String, Request> requests = new TreeMap<String, Request>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     * Addresses of the advertisers already looked at during this scan
+     */
+    private final HashSet<String> seenAddresses = new HashSet<String>();
+
+    /**
+     * Target and name of the request routed last, until the next request
+     */
+    private Target lastTarget;
+    private String lastDeviceName;
+
+    /**
+     * Tells if the radio is scanning
+     */
+    private boolean scanning;
+
+    /**
+     * Device names the running filtered scan was started with, ignoring case
+     */
+    private final TreeSet<String> filteredNames = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     * Filtered scanner, null below API 21 or when filtered scanning is disabled
+     */
+    private FilteredScanner filteredScanner;
+
+    /**
+     * Service the requested devices advertise, added to the hardware filters when set
+     */
+    private UUID serviceUuid;
+
+    private int deliveryMode = DELIVERY_LOW_LATENCY;
+
+    public ScanSession(BluetoothAdapter bluetoothAdapter, Handler handler, long scanTimeout) {
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.handler = handler;
+        this.scanTimeout = scanTimeout;
+        setFilteredScanning(true);
+    }
+
+    /**
+     * Only match devices advertising this service, in addition to their name. Applies from the next scan.
+     */
+    public synchronized void setServiceUuid(UUID serviceUuid) {
+        this.serviceUuid = serviceUuid;
+    }
+
+    /**
+     * Chooses between DELIVERY_LOW_LATENCY and DELIVERY_BATCHED. Applies from the next scan.
+     */
+    public synchronized void setDeliveryMode(int deliveryMode) {
+        if (deliveryMode != DELIVERY_LOW_LATENCY && deliveryMode != DELIVERY_BATCHED) {
+            throw new IllegalArgumentException("Unknown delivery mode: " + deliveryMode);
+        }
+        this.deliveryMode = deliveryMode;
+    }
+
+    /**
+     * Enables the BluetoothLeScanner path where available, otherwise uses the BluetoothAdapter scan.
+     * Applies from the next scan.
+     */
+    public synchronized void setFilteredScanning(boolean enabled) {
+        if (scanning) {
+            return;
+        }
+        if (enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            filteredScanner = new FilteredScanner();
+        } else {
+            filteredScanner = null;
+        }
+    }
+
+    /**
+     * Looks for a device with the given name, starting the scan if it is not running yet.
+     * A previous request for the same name is replaced.
+     * A target asking again from onDeviceFound, e.g. for the next device of a group, keeps the running scan
+     * and is not shown the advertisers already looked at: Android throttles apps restarting scans too often.
+     */
+    public void request(String deviceName, Target target) {
+        Request request = new Request(deviceName, target);
+        synchronized (this) {
+            Request previous = requests.put(deviceName, request);
+            if (previous != null) {
+                handler.removeCallbacks(previous);
+            }
+            if (!target.equals(lastTarget) || !deviceName.equalsIgnoreCase(lastDeviceName)) {
+                // Devices skipped so far may be the one this request is looking for
+                seenAddresses.clear();
+            }
+            lastTarget = null;
+            lastDeviceName = null;
+            if (scanning && filteredScanner != null && filteredScanner.isRunning()
+                    && !filteredNames.contains(deviceName)) {
+                // The hardware filters must include the new name
+                stopScan();
+                scanning = false;
+            }
+            if (!scanning) {
+                scanning = startScan();
+                if (!scanning) {
+                    Log.e(TAG, "Could not start scanning for " + deviceName);
+                }
+            }
+        }
+        handler.postDelayed(request, scanTimeout);
+    }
+
+    /**
+     * Stops looking for a device, the scan stops if nothing else is requested.
+     */
+    public synchronized void cancel(String deviceName) {
+        Request request = requests.remove(deviceName);
+        if (request != null) {
+            handler.removeCallbacks(request);
+        }
+        stopIfDone();
+    }
+
+    /**
+     * Drops every request and stops the scan.
+     */
+    public synchronized void stop() {
+        for (Request request : requests.values()) {
+            handler.removeCallbacks(request);
+        }
+        requests.clear();
+        stopIfDone();
+    }
+
+    public synchronized boolean isScanning() {
+        return scanning;
+    }
+
+    /**
+     * Routes a scan result to the request waiting for it, if any.
+     * The advertised name is used when the device name is not known yet, which is common before a first
+     * connection; null if the advertisement did not carry one.
+     */
+    void routeScanResult(BluetoothDevice device, String advertisedName, int rssi, byte[] scanRecord) {
+        Request request;
+        synchronized (this) {
+            if (!scanning || seenAddresses.contains(device.getAddress())) {
+                return;
+            }
+
+            String name = device.getName();
+            if (name == null) {
+                name = advertisedName;
+            }
+            if (name == null) {
+                // The name may come with a later advertisement, look at it again then
+                return;
+            }
+            seenAddresses.add(device.getAddress());
+
+            request = requests.remove(name);
+            if (request == null) {
+                return;
+            }
+            handler.removeCallbacks(request);
+            lastTarget = request.target;
+            lastDeviceName = request.deviceName;
+            // Stopped later, the target may ask for another device right away
+            handler.post(stopIfDone);
+        }
+
+        Log.d(TAG, "Found " + request.deviceName + " at " + device.getAddress());
+        request.target.onDeviceFound(device, rssi, scanRecord);
+    }
+
+    private void onTimeout(Request request) {
+        synchronized (this) {
+            if (requests.get(request.deviceName) != request) {
+                return;
+            }
+            requests.remove(request.deviceName);
+            stopIfDone();
+        }
+
+        Log.d(TAG, request.deviceName + " scanning timed out");
+        request.target.onScanTimeout();
+    }
+
+    private void stopIfDone() {
+        if (scanning && requests.isEmpty()) {
+            stopScan();
+            scanning = false;
+            seenAddresses.clear();
+        }
+    }
+
+    private final Runnable stopIfDone = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanSession.this) {
+                stopIfDone();
+            }
+        }
+    };
+
+    private boolean startScan() {
+        if (filteredScanner != null && filteredScanner.start()) {
+            return true;
+        }
+        return bluetoothAdapter.startLeScan(leScanCallback);
+    }
+
+    private void stopScan() {
+        filteredNames.clear();
+        if (filteredScanner != null) {
+            filteredScanner.stop();
+        }
+        bluetoothAdapter.stopLeScan(leScanCallback);
+    }
+
+    private final BluetoothAdapter.LeScanCallback leScanCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            routeScanResult(device, parseDeviceName(scanRecord), rssi, scanRecord);
+        }
+    };
+
+    /**
+     * Local name found in raw advertising data, null if none. ScanRecord.getDeviceName does the same from API 21.
+     */
+    static String parseDeviceName(byte[] scanRecord) {
+        if (scanRecord == null) {
+            return null;
+        }
+        String shortenedName = null;
+        int position = 0;
+        while (position < scanRecord.length) {
+            int length = scanRecord[position] & 0xFF;
+            if (length == 0 || position + length >= scanRecord.length) {
+                break;
+            }
+            int type = scanRecord[position + 1] & 0xFF;
+            if (type == AD_TYPE_COMPLETE_LOCAL_NAME) {
+                return new String(scanRecord, position + 2, length - 1, Charset.forName("UTF-8"));
+            }
+            if (type == AD_TYPE_SHORTENED_LOCAL_NAME) {
+                shortenedName = new String(scanRecord, position + 2, length - 1, Charset.forName("UTF-8"));
+            }
+            position += length + 1;
+        }
+        return shortenedName;
+    }
+
+    /**
+     * BluetoothLeScanner path, only loaded on API 21 and up
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class FilteredScanner extends ScanCallback {
+
+        private BluetoothLeScanner scanner;
+
+        /**
+         * Starts a filtered scan for the pending requests, returns false if the scanner is not available.
+         */
+        boolean start() {
+            scanner = bluetoothAdapter.getBluetoothLeScanner();
+            if (scanner == null) {
+                return false;
+            }
+
+            ParcelUuid service = serviceUuid != null ? new ParcelUuid(serviceUuid) : null;
+            List<ScanFilter> filters = new ArrayList<ScanFilter>(requests.size());
+            filteredNames.addAll(requests.keySet());
+            for (String deviceName : requests.keySet()) {
+                // Matched case sensitively by the controller, unlike the requests lookup
+                ScanFilter.Builder filter = new ScanFilter.Builder().setDeviceName(deviceName);
+                if (service != null) {
+                    filter.setServiceUuid(service);
+                }
+                filters.add(filter.build());
+            }
+
+            ScanSettings.Builder settings = new ScanSettings.Builder();
+            if (deliveryMode == DELIVERY_BATCHED && bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                settings.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER).setReportDelay(BATCH_REPORT_DELAY);
+            } else {
+                settings.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+            }
+
+            scanner.startScan(filters, settings.build(), this);
+            return true;
+        }
+
+        boolean isRunning() {
+            return scanner != null;
+        }
+
+        void stop() {
+            // The scanner is gone when Bluetooth was turned off
+            if (scanner != null && bluetoothAdapter.getState() == BluetoothAdapter.STATE_ON) {
+                scanner.stopScan(this);
+            }
+            scanner = null;
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            deliver(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (int i = 0; i < results.size(); i++) {
+                deliver(results.get(i));
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "Filtered scan failed with error " + errorCode + ", falling back to an unfiltered scan");
+            synchronized (ScanSession.this) {
+                if (scanning && scanner != null) {
+                    scanner = null;
+                    scanning = bluetoothAdapter.startLeScan(leScanCallback);
+                }
+            }
+        }
+
+        private void deliver(ScanResult result) {
+            ScanRecord record = result.getScanRecord();
+            if (record == null) {
+                routeScanResult(result.getDevice(), null, result.getRssi(), null);
+            } else {
+                routeScanResult(result.getDevice(), record.getDeviceName(), result.getRssi(), record.getBytes());
+            }
+        }
+    }
+
+    /**
+     * Pending scan request, doubles as its own timeout runnable
+     */
+    private class Request implements Runnable {
+        final String deviceName;
+        final Target target;
+
+        Request(String deviceName, Target target) {
+            this.deviceName = deviceName;
+            this.target = target;
+        }
+
+        @Override
+        public void run() {
+            onTimeout(this);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package us.dcrow.bracelet;
+
+/**
+ * Merges the hues of several breathing sensors into the hues shown by the Bracelets.
+ * The Bracelets are split into groups, each group shows one aggregated hue: a single group for
+ * AverageAggregator and LeaderAggregator, one group per sensor for RoutingAggregator.
+ * Called on the processing thread once per batch of samples, implementations must not allocate.
+ */
+public interface SensorAggregator {
+
+    /**
+     * Returned by aggregate when none of the sensors feeding the group has new samples
+     */
+    int UNCHANGED = -2;
+
+    /**
+     * Number of Bracelet groups fed from sensorCount sensors
+     */
+    int getGroupCount(int sensorCount);
+
+    /**
+     * Hue shown by a group. hues holds the newest hue of each sensor, BreathingPipeline.NO_HUE if it has
+     * none yet, updated tells the sensors that got new samples since the previous call.
+     * Returns the hue, or UNCHANGED.
+     */
+    int aggregate(int[] hues, boolean[] updated, int sensorCount, int group);
+}
@@ -0,0 +1,127 @@
+package us.dcrow.bracelet;
+
+/**
+ * Sliding window calibrator for the breathing sensor.
+ * Tracks the maximum and minimum of the last N samples using a primitive ring buffer
+ * and two monotonic deques, so each update is amortized O(1) and allocates nothing.
+ */
+public class SensorCalibrator {
+
+    /**
+     * Number of samples the calibration window spans
+     */
+    private final int windowSize;
+
+    /**
+     * Total number of samples seen, used as a monotonically increasing sample index
+     */
+    private long sampleCount;
+
+    /**
+     * Ring buffers holding the candidate indices and values of the max deque.
+     * Values are kept in decreasing order from head to tail.
+     */
+    private final long[] maxIndices;
+    private final int[] maxValues;
+    private int maxHead;
+    private int maxSize;
+
+    /**
+     * Ring buffers holding the candidate indices and values of the min deque.
+     * Values are kept in increasing order from head to tail.
+     */
+    private final long[] minIndices;
+    private final int[] minValues;
+    private int minHead;
+    private int minSize;
+
+    public SensorCalibrator(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Calibration window must hold at least one sample");
+        }
+        this.windowSize = windowSize;
+        maxIndices = new long[windowSize];
+        maxValues = new int[windowSize];
+        minIndices = new long[windowSize];
+        minValues = new int[windowSize];
+    }
+
+    /**
+     * Adds a sample to the window, evicting the oldest one when the window is at capacity.
+     */
+    public void add(int value) {
+        long index = sampleCount++;
+        long oldestIndex = index - windowSize;
+
+        // Drop candidates that slid out of the window
+        if (maxSize > 0 && maxIndices[maxHead] <= oldestIndex) {
+            maxHead = next(maxHead);
+            maxSize--;
+        }
+        if (minSize > 0 && minIndices[minHead] <= oldestIndex) {
+            minHead = next(minHead);
+            minSize--;
+        }
+
+        // Drop candidates that can never become the max/min again
+        while (maxSize > 0 && maxValues[slot(maxHead, maxSize - 1)] <= value) {
+            maxSize--;
+        }
+        while (minSize > 0 && minValues[slot(minHead, minSize - 1)] >= value) {
+            minSize--;
+        }
+
+        int maxTail = slot(maxHead, maxSize++);
+        maxIndices[maxTail] = index;
+        maxValues[maxTail] = value;
+
+        int minTail = slot(minHead, minSize++);
+        minIndices[minTail] = index;
+        minValues[minTail] = value;
+    }
+
+    /**
+     * Max value in the current window, 0 if no samples were added yet
+     */
+    public int getMax() {
+        return maxSize > 0 ? maxValues[maxHead] : 0;
+    }
+
+    /**
+     * Min value in the current window, 0 if no samples were added yet
+     */
+    public int getMin() {
+        return minSize > 0 ? minValues[minHead] : 0;
+    }
+
+    /**
+     * Tells if the window has been filled at least once
+     */
+    public boolean isFull() {
+        return sampleCount >= windowSize;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Forgets all samples, e.g. when a new sensor connects.
+     */
+    public void reset() {
+        sampleCount = 0;
+        maxHead = 0;
+        maxSize = 0;
+        minHead = 0;
+        minSize = 0;
+    }
+
+    private int next(int position) {
+        return position + 1 == windowSize ? 0 : position + 1;
+    }
+
+    private int slot(int head, int offset) {
+        int position = head + offset;
+        return position >= windowSize ? position - windowSize : position;
+    }
+}
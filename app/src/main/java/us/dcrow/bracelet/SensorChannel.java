@@ -0,0 +1,87 @@
+package us.dcrow.bracelet;
+
+/**
+ * One breathing sensor and its own signal path: packet decoder, sample ring and BreathingPipeline,
+ * so each sensor keeps its own calibration and filter state.
+ * The decoder is owned by the thread delivering the sensor's notifications, the pipeline by the
+ * processing thread, the ring hands the samples from one to the other.
+ */
+public class SensorChannel {
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private final PeripheralLink link;
+
+    private final MantraPacketDecoder decoder = new MantraPacketDecoder();
+
+    private final SampleRingBuffer samples;
+
+    private final BreathingPipeline pipeline = new BreathingPipeline();
+
+    /**
+     * Newest hue of the sensor, only touched from the processing thread
+     */
+    int hue = BreathingPipeline.NO_HUE;
+
+    /**
+     * @param link the sensor's connection, null when fed some other way (e.g. a replay)
+     */
+    public SensorChannel(PeripheralLink link, int bufferSize) {
+        this.link = link;
+        samples = new SampleRingBuffer(bufferSize);
+    }
+
+    public PeripheralLink getLink() {
+        return link;
+    }
+
+    public BreathingPipeline getPipeline() {
+        return pipeline;
+    }
+
+    public SampleRingBuffer getSampleBuffer() {
+        return samples;
+    }
+
+    /**
+     * Decoder of the last notification, for its samples and packet statistics
+     */
+    public MantraPacketDecoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * Decodes a notification and queues its samples for the processing thread.
+     * The last sample is stamped receivedNanos, the earlier ones of a batch go back by the sample interval
+     * the packet gives, if any, so the latency of each of them is measured from when it was taken.
+     * Returns the number of samples decoded, see getDecoder for them; fewer may have been queued if the
+     * processing thread is behind, see getDroppedSamples.
+     */
+    public int onNotification(byte[] value, long receivedNanos) {
+        int count = decoder.decode(value);
+        if (count > 0) {
+            int interval = decoder.getSampleInterval();
+            samples.offer(decoder.getSamples(), count, receivedNanos,
+                    interval != MantraPacketDecoder.NO_INTERVAL ? interval * NANOS_PER_MILLI : 0);
+        }
+        return count;
+    }
+
+    /**
+     * Forgets the packet sequence, e.g. when the sensor reconnects. The calibration is kept.
+     */
+    public void onConnected() {
+        decoder.reset();
+    }
+
+    public long getDroppedSamples() {
+        return samples.getDroppedSamples();
+    }
+
+    /**
+     * Newest hue of the sensor, from the processing thread only
+     */
+    public int getHue() {
+        return hue;
+    }
+}
@@ -0,0 +1,121 @@
+package us.dcrow.bracelet;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads back a session written by SessionRecorder, one record at a time.
+ * Plain Java, runs on a desktop JVM as well as on the device.
+ */
+public class SessionReader implements Closeable {
+
+    private final DataInputStream input;
+
+    private final long startWallClockMillis;
+    private final long startNanos;
+
+    /**
+     * Last record read
+     */
+    private long timeMicros;
+    private int sample;
+    private int frame;
+
+    public SessionReader(File file) throws IOException {
+        input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != SessionRecorder.MAGIC) {
+                throw new IOException(file + " is not a recorded session");
+            }
+            short version = input.readShort();
+            if (version != SessionRecorder.VERSION) {
+                throw new IOException("Unsupported session version " + version + " in " + file);
+            }
+            input.readShort();
+            startWallClockMillis = input.readLong();
+            startNanos = input.readLong();
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the next record, returns its SessionRecorder.TAG_*, TAG_END once there is no more.
+     */
+    public int next() throws IOException {
+        int tag = input.read();
+        if (tag <= 0) {
+            return SessionRecorder.TAG_END;
+        }
+
+        timeMicros += SessionRecorder.unzigzag(readVarint());
+        switch (tag) {
+            case SessionRecorder.TAG_SAMPLE:
+                sample += (int) SessionRecorder.unzigzag(readVarint());
+                break;
+            case SessionRecorder.TAG_FRAME:
+                frame = input.readInt();
+                break;
+            default:
+                throw new IOException("Unknown session record " + tag);
+        }
+        return tag;
+    }
+
+    /**
+     * Time of the last record since the start of the session, in microseconds
+     */
+    public long getTimeMicros() {
+        return timeMicros;
+    }
+
+    /**
+     * Sensor value of the last TAG_SAMPLE record
+     */
+    public int getSample() {
+        return sample;
+    }
+
+    /**
+     * Copies the red, green, blue and brightness of the last TAG_FRAME record into a frame
+     */
+    public void getFrame(byte[] frame) {
+        frame[0] = (byte) (this.frame >>> 24);
+        frame[1] = (byte) (this.frame >>> 16);
+        frame[2] = (byte) (this.frame >>> 8);
+        frame[3] = (byte) this.frame;
+    }
+
+    public long getStartWallClockMillis() {
+        return startWallClockMillis;
+    }
+
+    /**
+     * Start of the session, SystemClock.elapsedRealtimeNanos of the recording device
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
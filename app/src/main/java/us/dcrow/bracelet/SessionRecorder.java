@@ -0,0 +1,290 @@
+package us.dcrow.bracelet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records a breathing session, the raw Mantra samples and the breathing frames sent to the Bracelet,
+ * into an append-only memory mapped file.
+ * The producers only put records in lock-free rings, a recorder thread encodes them into the mapping and
+ * forces it to disk every FORCE_INTERVAL. When the recorder thread falls behind, records are dropped and
+ * counted, the signal path is never blocked.
+ *
+ * File format, version 1, big endian:
+ * <pre>
+ * header   int MAGIC, short VERSION, short 0, long wall clock start time (ms), long start time (elapsed ns)
+ * records  byte tag, zigzag varint time since the previous record (us), then
+ *          TAG_SAMPLE: zigzag varint difference with the previous sample
+ *          TAG_FRAME:  4 bytes red, green, blue, brightness
+ * end      a 0 tag, or the end of the file
+ * </pre>
+ * Times are SystemClock.elapsedRealtimeNanos. A file left behind by a crash reads fine up to the last
+ * record forced to disk, the mapping is zero filled past it.
+ */
+public class SessionRecorder {
+
+    public static final int MAGIC = 0x4252534e; // "BRSN"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 24;
+
+    public static final int TAG_END = 0;
+    public static final int TAG_SAMPLE = 1;
+    public static final int TAG_FRAME = 2;
+
+    /**
+     * Records waiting for the recorder thread, per producer
+     */
+    private static final int RING_SIZE = 4096;
+
+    /**
+     * Size of each mapped region of the file, the file grows by this much
+     */
+    private static final int REGION_SIZE = 256 * 1024;
+
+    /**
+     * Largest encoded record: tag and two varints
+     */
+    private static final int MAX_RECORD_SIZE = 1 + 10 + 10;
+
+    /**
+     * Time between two drains of the rings
+     */
+    private static final long DRAIN_INTERVAL = 50;
+
+    /**
+     * Time between two forced writes of the mapping to disk
+     */
+    private static final long FORCE_INTERVAL = 1000;
+
+    private final File file;
+
+    /**
+     * Raw samples, produced by the thread receiving the notifications
+     */
+    private final SampleRingBuffer samples = new SampleRingBuffer(RING_SIZE);
+
+    /**
+     * Frames packed in an int, produced by the processing thread
+     */
+    private final SampleRingBuffer frames = new SampleRingBuffer(RING_SIZE);
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+
+    /**
+     * Current region, and its offset in the file
+     */
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    /**
+     * Encoder state, only touched from the recorder thread
+     */
+    private long startNanos;
+    private long lastMicros;
+    private int lastSample;
+
+    private Thread thread;
+    private volatile boolean running;
+    private volatile IOException failure;
+
+    public SessionRecorder(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Creates the file, writes the header and starts the recorder thread.
+     */
+    public synchronized void start(long startNanos) throws IOException {
+        if (thread != null) {
+            throw new IllegalStateException("Recorder already started");
+        }
+        this.startNanos = startNanos;
+
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        channel = randomAccessFile.getChannel();
+        mapRegion(0);
+
+        region.putInt(MAGIC);
+        region.putShort(VERSION);
+        region.putShort((short) 0);
+        region.putLong(System.currentTimeMillis());
+        region.putLong(startNanos);
+
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recordLoop();
+            }
+        }, "SessionRecorder");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Queues raw samples received together, from the thread receiving the notifications only.
+     */
+    public void recordSamples(int[] batch, int count, long timestampNanos) {
+        if (running) {
+            samples.offer(batch, count, timestampNanos);
+        }
+    }
+
+    /**
+     * Queues a frame sent to the Bracelet, from the processing thread only.
+     */
+    public void recordFrame(byte[] frame, long timestampNanos) {
+        if (running) {
+            frames.offer((frame[0] & 0xFF) << 24 | (frame[1] & 0xFF) << 16 | (frame[2] & 0xFF) << 8 | (frame[3] & 0xFF),
+                    timestampNanos);
+        }
+    }
+
+    /**
+     * Writes what is left in the rings, trims the file and closes it. Blocks until the recorder thread is done.
+     */
+    public synchronized void stop() throws IOException {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            if (failure == null) {
+                region.force();
+                channel.truncate(regionStart + region.position());
+            }
+        } finally {
+            channel.close();
+            randomAccessFile.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public boolean isRecording() {
+        return running;
+    }
+
+    /**
+     * Records the rings had no room for
+     */
+    public long getDroppedRecords() {
+        return samples.getDroppedSamples() + frames.getDroppedSamples();
+    }
+
+    /**
+     * Error that stopped the recording, null if none
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    private void recordLoop() {
+        long lastForce = System.currentTimeMillis();
+        try {
+            while (true) {
+                boolean last = !running;
+                drain();
+                if (last) {
+                    return;
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastForce >= FORCE_INTERVAL) {
+                    region.force();
+                    lastForce = now;
+                }
+                try {
+                    Thread.sleep(DRAIN_INTERVAL);
+                } catch (InterruptedException e) {
+                    // Checked on the next turn through running
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            running = false;
+        }
+    }
+
+    /**
+     * Encodes the queued records, merging both rings in time order.
+     */
+    private void drain() throws IOException {
+        while (true) {
+            boolean hasSample = !samples.isEmpty();
+            boolean hasFrame = !frames.isEmpty();
+            if (!hasSample && !hasFrame) {
+                return;
+            }
+
+            if (region.remaining() < MAX_RECORD_SIZE) {
+                mapRegion(regionStart + region.position());
+            }
+
+            if (hasSample && (!hasFrame || samples.peekTimestamp() <= frames.peekTimestamp())) {
+                putTime(TAG_SAMPLE, samples.peekTimestamp());
+                int sample = samples.poll();
+                putVarint(zigzag(sample - lastSample));
+                lastSample = sample;
+            } else {
+                putTime(TAG_FRAME, frames.peekTimestamp());
+                region.putInt(frames.poll());
+            }
+        }
+    }
+
+    private void putTime(int tag, long timestampNanos) {
+        long micros = (timestampNanos - startNanos) / 1000;
+        region.put((byte) tag);
+        putVarint(zigzag(micros - lastMicros));
+        lastMicros = micros;
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            region.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        region.put((byte) value);
+    }
+
+    private void mapRegion(long position) throws IOException {
+        if (region != null) {
+            region.force();
+        }
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, REGION_SIZE);
+        region.order(ByteOrder.BIG_ENDIAN);
+        regionStart = position;
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
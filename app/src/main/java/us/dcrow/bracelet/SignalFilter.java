@@ -0,0 +1,19 @@
+package us.dcrow.bracelet;
+
+/**
+ * Streaming filter stage for the breathing sensor signal.
+ * Implementations process one sample at a time and must not allocate while filtering,
+ * they are called for every sensor notification.
+ */
+public interface SignalFilter {
+
+    /**
+     * Feeds a sample to the filter and returns the filtered value.
+     */
+    int filter(int sample);
+
+    /**
+     * Forgets all past samples, e.g. when a new sensor connects.
+     */
+    void reset();
+}
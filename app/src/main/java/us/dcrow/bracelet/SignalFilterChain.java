@@ -0,0 +1,40 @@
+package us.dcrow.bracelet;
+
+/**
+ * Runs a sample through several filters in order, feeding each stage the output of the previous one.
+ */
+public class SignalFilterChain implements SignalFilter {
+
+    /**
+     * Filter stages, applied first to last
+     */
+    private final SignalFilter[] stages;
+
+    public SignalFilterChain(SignalFilter... stages) {
+        this.stages = stages.clone();
+    }
+
+    @Override
+    public int filter(int sample) {
+        int value = sample;
+        for (int i = 0; i < stages.length; i++) {
+            value = stages[i].filter(value);
+        }
+        return value;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i].reset();
+        }
+    }
+
+    public int getStageCount() {
+        return stages.length;
+    }
+
+    public SignalFilter getStage(int index) {
+        return stages[index];
+    }
+}
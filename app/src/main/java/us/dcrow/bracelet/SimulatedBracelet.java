@@ -0,0 +1,140 @@
+package us.dcrow.bracelet;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process Bracelet, accepts color frames with a configurable latency, loss and busy rejections.
+ * Like the real stack it takes one write at a time, a write started while another is in flight is refused.
+ */
+public class SimulatedBracelet extends SimulatedPeripheralLink {
+
+    public static final long DEFAULT_WRITE_LATENCY = 15;
+
+    private volatile long writeLatencyMillis = DEFAULT_WRITE_LATENCY;
+    private volatile long jitterMillis;
+    private volatile double lossRate;
+    private volatile double busyRate;
+
+    /**
+     * Last frame shown
+     */
+    private final byte[] shownFrame = new byte[HuePalette.FRAME_SIZE];
+
+    /**
+     * Frame being written
+     */
+    private final byte[] writtenFrame = new byte[HuePalette.FRAME_SIZE];
+    private boolean inFlight;
+
+    /**
+     * Statistics
+     */
+    private long writtenFrames;
+    private long lostWrites;
+    private long rejectedWrites;
+
+    public SimulatedBracelet(ScheduledExecutorService executor, String name, String address) {
+        super(executor, name, address);
+    }
+
+    /**
+     * Time between a write and its completion
+     */
+    public void setWriteLatency(long millis) {
+        writeLatencyMillis = millis;
+    }
+
+    /**
+     * Largest random deviation of the write latency
+     */
+    public void setJitter(long millis) {
+        jitterMillis = millis;
+    }
+
+    /**
+     * Share of the writes failing, between 0 and 1
+     */
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * Share of the writes refused right away as if the stack was busy, between 0 and 1
+     */
+    public void setBusyRate(double busyRate) {
+        this.busyRate = busyRate;
+    }
+
+    @Override
+    public boolean write(byte[] value) {
+        synchronized (this) {
+            if (!isReady() || inFlight || random.nextDouble() < busyRate) {
+                rejectedWrites++;
+                return false;
+            }
+            System.arraycopy(value, 0, writtenFrame, 0, Math.min(value.length, writtenFrame.length));
+            inFlight = true;
+        }
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                completeWrite();
+            }
+        }, Math.max(0, writeLatencyMillis + jitter(jitterMillis)), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private void completeWrite() {
+        int status;
+        synchronized (this) {
+            if (!inFlight) {
+                // Dropped with the connection
+                return;
+            }
+            inFlight = false;
+            if (random.nextDouble() < lossRate) {
+                lostWrites++;
+                status = STATUS_FAILURE;
+            } else {
+                System.arraycopy(writtenFrame, 0, shownFrame, 0, shownFrame.length);
+                writtenFrames++;
+                status = STATUS_SUCCESS;
+            }
+        }
+
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onWriteComplete(this, status);
+        }
+    }
+
+    @Override
+    protected void onConnected(int connection) {
+    }
+
+    @Override
+    protected synchronized void onDisconnected() {
+        inFlight = false;
+    }
+
+    /**
+     * Copies the frame the Bracelet shows
+     */
+    public synchronized void getShownFrame(byte[] frame) {
+        System.arraycopy(shownFrame, 0, frame, 0, shownFrame.length);
+    }
+
+    public synchronized long getWrittenFrames() {
+        return writtenFrames;
+    }
+
+    public synchronized long getLostWrites() {
+        return lostWrites;
+    }
+
+    public synchronized long getRejectedWrites() {
+        return rejectedWrites;
+    }
+}
@@ -0,0 +1,148 @@
+package us.dcrow.bracelet;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process Mantra, notifies breathing samples at a configurable rate and jitter.
+ * One sample per notification is sent the way current firmware does (a single byte), more are sent
+ * as MantraPacketDecoder frames with a sequence number and the sample interval.
+ * Samples cycle through the given samples, a clean 4 second breathing cycle by default.
+ */
+public class SimulatedMantra extends SimulatedPeripheralLink {
+
+    public static final double DEFAULT_NOTIFICATION_RATE = 20;
+
+    /**
+     * Framed packet header: flags, sequence number and 2 bytes of sample interval
+     */
+    private static final int FRAME_HEADER_SIZE = 4;
+
+    private volatile double notificationRate = DEFAULT_NOTIFICATION_RATE;
+    private volatile long jitterMillis;
+    private volatile int samplesPerNotification = 1;
+    private volatile int[] samples;
+
+    /**
+     * Emission state, only touched from the executor thread
+     */
+    private int position;
+    private int sequence;
+    private byte[] packet;
+
+    private volatile long sentNotifications;
+
+    public SimulatedMantra(ScheduledExecutorService executor, String name, String address) {
+        super(executor, name, address);
+    }
+
+    /**
+     * Notifications per second
+     */
+    public void setNotificationRate(double notificationsPerSecond) {
+        if (notificationsPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + notificationsPerSecond);
+        }
+        notificationRate = notificationsPerSecond;
+    }
+
+    /**
+     * Largest random deviation of each notification from its period
+     */
+    public void setJitter(long millis) {
+        jitterMillis = millis;
+    }
+
+    public void setSamplesPerNotification(int count) {
+        if (count <= 0 || count > 255) {
+            throw new IllegalArgumentException("Samples per notification out of range: " + count);
+        }
+        samplesPerNotification = count;
+    }
+
+    /**
+     * Sensor values to send, in a loop, between 1 and 255
+     */
+    public void setSamples(int[] samples) {
+        this.samples = samples.clone();
+    }
+
+    public long getSentNotifications() {
+        return sentNotifications;
+    }
+
+    @Override
+    public boolean write(byte[] value) {
+        // Nothing to write to on the Mantra
+        return false;
+    }
+
+    @Override
+    protected void onConnected(int connection) {
+        scheduleNotification(connection);
+    }
+
+    @Override
+    protected void onDisconnected() {
+    }
+
+    private void scheduleNotification(final int connection) {
+        long period = Math.round(1000 / notificationRate);
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCurrent(connection)) {
+                    return;
+                }
+                notifySamples();
+                scheduleNotification(connection);
+            }
+        }, Math.max(0, period + jitter(jitterMillis)), TimeUnit.MILLISECONDS);
+    }
+
+    private void notifySamples() {
+        int[] samples = this.samples;
+        if (samples == null) {
+            samples = breathingCycle(Math.max(1, (int) Math.round(4 * notificationRate * samplesPerNotification)));
+            this.samples = samples;
+        }
+
+        int count = samplesPerNotification;
+        int size = count == 1 ? 1 : FRAME_HEADER_SIZE + count;
+        if (packet == null || packet.length != size) {
+            packet = new byte[size];
+        }
+
+        int offset = 0;
+        if (count > 1) {
+            int interval = (int) Math.round(1000 / (notificationRate * count));
+            packet[0] = (byte) (MantraPacketDecoder.FLAG_FRAMED | MantraPacketDecoder.FLAG_SEQUENCE
+                    | MantraPacketDecoder.FLAG_TIMESTAMP);
+            packet[1] = (byte) sequence++;
+            packet[2] = (byte) interval;
+            packet[3] = (byte) (interval >> 8);
+            offset = FRAME_HEADER_SIZE;
+        }
+        for (int i = 0; i < count; i++) {
+            packet[offset + i] = (byte) samples[position];
+            position = (position + 1) % samples.length;
+        }
+
+        sentNotifications++;
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onNotification(this, packet);
+        }
+    }
+
+    /**
+     * One breathing cycle of the given length, between 28 and 228
+     */
+    private static int[] breathingCycle(int length) {
+        int[] cycle = new int[length];
+        for (int i = 0; i < length; i++) {
+            cycle[i] = 128 + (int) Math.round(100 * Math.sin(2 * Math.PI * i / length));
+        }
+        return cycle;
+    }
+}
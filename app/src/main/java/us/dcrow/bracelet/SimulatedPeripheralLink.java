@@ -0,0 +1,172 @@
+package us.dcrow.bracelet;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base of the in-process peripherals standing in for the RFduinos.
+ * Events are delivered from the given executor's thread, the way the BLE stack delivers them from a binder thread.
+ */
+public abstract class SimulatedPeripheralLink implements PeripheralLink {
+
+    /**
+     * Default time between connect and onReady
+     */
+    public static final long DEFAULT_CONNECT_DELAY = 100;
+
+    protected final ScheduledExecutorService executor;
+
+    /**
+     * Seedable, so a simulation can be replayed
+     */
+    protected final Random random = new Random();
+
+    private final String name;
+    private final String address;
+
+    private final ConnectionProfile connectionProfile = new ConnectionProfile();
+
+    protected volatile Listener listener;
+
+    private volatile boolean ready;
+    private volatile boolean closed;
+
+    /**
+     * Incremented on every connection, tasks of an older connection check it and give up
+     */
+    private final AtomicInteger connection = new AtomicInteger();
+
+    private volatile long connectDelayMillis = DEFAULT_CONNECT_DELAY;
+
+    protected SimulatedPeripheralLink(ScheduledExecutorService executor, String name, String address) {
+        this.executor = executor;
+        this.name = name;
+        this.address = address;
+        connectionProfile.setSupported(true);
+    }
+
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    public void setConnectDelay(long millis) {
+        connectDelayMillis = millis;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void connect(boolean autoConnect) {
+        if (closed) {
+            throw new IllegalStateException(name + " link is closed");
+        }
+        final int connecting = connection.incrementAndGet();
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (connecting != connection.get() || closed) {
+                    return;
+                }
+                Listener listener = SimulatedPeripheralLink.this.listener;
+                if (listener != null) {
+                    listener.onConnected(SimulatedPeripheralLink.this);
+                }
+                connectionProfile.setMtu(ConnectionProfile.PREFERRED_MTU);
+                ready = true;
+                onConnected(connecting);
+                if (listener != null) {
+                    listener.onReady(SimulatedPeripheralLink.this);
+                }
+            }
+        }, connectDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void disconnect() {
+        connection.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dropConnection();
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        connection.incrementAndGet();
+        ready = false;
+    }
+
+    /**
+     * Simulates the peer going away, e.g. out of range.
+     */
+    public void dropConnection() {
+        connection.incrementAndGet();
+        boolean wasReady = ready;
+        ready = false;
+        connectionProfile.reset();
+        onDisconnected();
+        Listener listener = this.listener;
+        if (wasReady && listener != null && !closed) {
+            listener.onDisconnected(this);
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void requestConnectionPriority(int priority) {
+        if (ready) {
+            connectionProfile.setPriority(priority);
+        }
+    }
+
+    @Override
+    public ConnectionProfile getConnectionProfile() {
+        return connectionProfile;
+    }
+
+    /**
+     * Tells if a task scheduled for the given connection should still run
+     */
+    protected boolean isCurrent(int connection) {
+        return ready && connection == this.connection.get();
+    }
+
+    /**
+     * Called on the executor thread once connected, connection identifies it for isCurrent
+     */
+    protected abstract void onConnected(int connection);
+
+    /**
+     * Called on the executor thread once disconnected
+     */
+    protected abstract void onDisconnected();
+
+    /**
+     * Uniform random value in [-jitter, jitter]
+     */
+    protected long jitter(long jitterMillis) {
+        return jitterMillis <= 0 ? 0 : (long) ((random.nextDouble() * 2 - 1) * jitterMillis);
+    }
+}
@@ -0,0 +1,110 @@
+package us.dcrow.bracelet;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory trace of the hot path, a replacement for per-sample logcat lines.
+ * Events are fixed-size binary records (time, event, two arguments) written into a preallocated ring,
+ * so recording allocates nothing and never blocks. The newest RECORD_COUNT events are kept and can be
+ * dumped on demand, e.g. with "adb shell dumpsys activity service BraceletService".
+ *
+ * Tracing is off until setEnabled(true), a disabled record is a single volatile read.
+ * Setting COMPILED to false removes every record call at compile time.
+ */
+public final class TraceLog {
+
+    /**
+     * Compile time switch, false strips the tracing code from the build
+     */
+    public static final boolean COMPILED = true;
+
+    /**
+     * Event ids, with their arguments
+     */
+    public static final int EVENT_RANGED = 0;               // max, min
+    public static final int EVENT_HUE = 1;                  // hue, filtered sensor value
+    public static final int EVENT_NULL_SAMPLE = 2;          // -, -
+    public static final int EVENT_FRAME_SENT = 3;           // 0xRRGGBB, brightness
+    public static final int EVENT_BRACELET_NOTIFICATION = 4; // value length, -
+    public static final int EVENT_CONNECTION_STATE = 5;     // from, to
+
+    private static final String[] EVENT_NAMES = {
+            "ranged max/min", "hue/filtered", "null sample", "frame sent rgb/brightness", "bracelet notification length",
+            "connection state from/to"
+    };
+
+    /**
+     * Number of events kept, a power of two
+     */
+    public static final int RECORD_COUNT = 1024;
+
+    /**
+     * Longs per record: time, event, first argument, second argument
+     */
+    private static final int RECORD_SIZE = 4;
+
+    private static final long[] records = new long[RECORD_COUNT * RECORD_SIZE];
+
+    /**
+     * Number of events ever recorded, the next one goes at this position modulo RECORD_COUNT
+     */
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private static volatile boolean enabled;
+
+    private TraceLog() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        TraceLog.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return COMPILED && enabled;
+    }
+
+    /**
+     * Records an event, from any thread.
+     */
+    public static void record(int event, long first, long second) {
+        if (!COMPILED || !enabled) {
+            return;
+        }
+        int base = (int) (sequence.getAndIncrement() & (RECORD_COUNT - 1)) * RECORD_SIZE;
+        records[base] = System.nanoTime();
+        records[base + 1] = event;
+        records[base + 2] = first;
+        records[base + 3] = second;
+    }
+
+    /**
+     * Prints the kept events, oldest first, times relative to the newest event.
+     * Events recorded while dumping may show up torn, tracing can be disabled first for an exact dump.
+     */
+    public static void dump(PrintWriter writer) {
+        long end = sequence.get();
+        long start = Math.max(0, end - RECORD_COUNT);
+        if (end == start) {
+            writer.println("Trace empty" + (isEnabled() ? "" : ", tracing disabled"));
+            return;
+        }
+
+        long newest = records[(int) ((end - 1) & (RECORD_COUNT - 1)) * RECORD_SIZE];
+        writer.println("Trace, " + (end - start) + " of " + end + " events:");
+        for (long position = start; position < end; position++) {
+            int base = (int) (position & (RECORD_COUNT - 1)) * RECORD_SIZE;
+            int event = (int) records[base + 1];
+            String name = event >= 0 && event < EVENT_NAMES.length ? EVENT_NAMES[event] : "event " + event;
+            writer.println(String.format("%+.3fms %s %d %d",
+                    (records[base] - newest) / 1e6, name, records[base + 2], records[base + 3]));
+        }
+    }
+
+    /**
+     * Forgets the recorded events.
+     */
+    public static void clear() {
+        sequence.set(0);
+    }
+}
@@ -0,0 +1,79 @@
+package us.dcrow.bracelet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the biquad low-pass at DC, in its pass band and above its cutoff.
+ */
+public class BiquadLowPassFilterTest {
+
+    private static final double SAMPLE_RATE = 50;
+    private static final double CUTOFF = 2;
+
+    /**
+     * Largest output magnitude for a sine of the given frequency, once the filter settled
+     */
+    private static int peakOutput(double frequency, int amplitude) {
+        BiquadLowPassFilter filter = new BiquadLowPassFilter(CUTOFF, SAMPLE_RATE);
+        int peak = 0;
+        for (int i = 0; i < 2000; i++) {
+            int sample = (int) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+            int value = filter.filter(sample);
+            if (i >= 1000) {
+                peak = Math.max(peak, Math.abs(value));
+            }
+        }
+        return peak;
+    }
+
+    @Test
+    public void holdsDcSteadyState() {
+        BiquadLowPassFilter filter = new BiquadLowPassFilter(CUTOFF, SAMPLE_RATE);
+        // Seeded with the first sample, no ramp up from 0
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("sample " + i, 500, filter.filter(500));
+        }
+    }
+
+    @Test
+    public void settlesOnDcStep() {
+        BiquadLowPassFilter filter = new BiquadLowPassFilter(CUTOFF, SAMPLE_RATE);
+        filter.filter(0);
+        int value = 0;
+        for (int i = 0; i < 500; i++) {
+            value = filter.filter(1000);
+        }
+        assertEquals(1000, value);
+    }
+
+    @Test
+    public void passesBelowCutoff() {
+        int peak = peakOutput(0.2, 1000);
+        assertTrue("pass band peak " + peak, peak > 950 && peak < 1050);
+    }
+
+    @Test
+    public void attenuatesAboveCutoff() {
+        // More than three octaves above the cutoff, 12 dB/octave
+        int peak = peakOutput(20, 1000);
+        assertTrue("stop band peak " + peak, peak < 20);
+    }
+
+    @Test
+    public void resetForgetsState() {
+        BiquadLowPassFilter filter = new BiquadLowPassFilter(CUTOFF, SAMPLE_RATE);
+        filter.filter(1000);
+        filter.filter(0);
+        filter.reset();
+
+        assertEquals(4, filter.filter(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCutoffAboveNyquist() {
+        new BiquadLowPassFilter(SAMPLE_RATE / 2, SAMPLE_RATE);
+    }
+}
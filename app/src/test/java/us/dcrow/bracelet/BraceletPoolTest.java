@@ -0,0 +1,145 @@
+package us.dcrow.bracelet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a pool of simulated Bracelets, one of them much slower than the others.
+ */
+public class BraceletPoolTest {
+
+    private static final int FAST_BRACELETS = 3;
+    private static final long FAST_LATENCY = 2;
+    private static final long SLOW_LATENCY = 100;
+    private static final long RETRY_DELAY = 250;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private ScheduledExecutorService executor;
+    private final BraceletPool pool = new BraceletPool();
+    private final SimulatedBracelet[] bracelets = new SimulatedBracelet[FAST_BRACELETS + 1];
+    private CountDownLatch ready;
+
+    @Before
+    public void connectBracelets() throws InterruptedException {
+        executor = Executors.newScheduledThreadPool(2);
+        ready = new CountDownLatch(bracelets.length);
+
+        for (int i = 0; i < bracelets.length; i++) {
+            final SimulatedBracelet bracelet = new SimulatedBracelet(executor, "Bracelet", "00:00:00:00:01:0" + i);
+            bracelet.setConnectDelay(0);
+            bracelet.setWriteLatency(i < FAST_BRACELETS ? FAST_LATENCY : SLOW_LATENCY);
+            bracelet.setListener(listener);
+            bracelets[i] = bracelet;
+
+            pool.add(bracelet, new ColorWriteScheduler(new ColorWriteScheduler.FrameWriter() {
+                @Override
+                public boolean writeFrame(byte[] frame, long originNanos) {
+                    return bracelet.write(frame);
+                }
+            }, HuePalette.FRAME_SIZE, RETRY_DELAY));
+            bracelet.connect(false);
+        }
+        assertTrue(ready.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @After
+    public void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    private final PeripheralLink.Listener listener = new PeripheralLink.Listener() {
+        @Override
+        public void onConnected(PeripheralLink link) {
+        }
+
+        @Override
+        public void onReady(PeripheralLink link) {
+            pool.onReady(link);
+            ready.countDown();
+        }
+
+        @Override
+        public void onDisconnected(PeripheralLink link) {
+            pool.onDisconnected(link);
+        }
+
+        @Override
+        public void onNotification(PeripheralLink link, byte[] value) {
+        }
+
+        @Override
+        public void onWriteComplete(PeripheralLink link, int status) {
+            long now = System.currentTimeMillis();
+            pool.onWriteComplete(link, status == PeripheralLink.STATUS_SUCCESS, now);
+            pool.poll(now);
+        }
+    };
+
+    @Test
+    public void slowBraceletDoesNotHoldBackTheOthers() throws InterruptedException {
+        assertEquals(bracelets.length, pool.getReadyCount());
+
+        byte[] frame = new byte[HuePalette.FRAME_SIZE];
+        frame[3] = 10;
+        for (int i = 0; i < 100; i++) {
+            frame[0] = (byte) i;
+            pool.submit(frame, PipelineLatency.NO_ORIGIN, System.currentTimeMillis());
+            Thread.sleep(4);
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!allIdle() && System.currentTimeMillis() < deadline) {
+            pool.poll(System.currentTimeMillis());
+            Thread.sleep(1);
+        }
+        assertTrue(allIdle());
+
+        byte[] shown = new byte[HuePalette.FRAME_SIZE];
+        for (SimulatedBracelet bracelet : bracelets) {
+            bracelet.getShownFrame(shown);
+            assertArrayEquals(frame, shown);
+        }
+
+        // The slow Bracelet coalesced most frames, the fast ones got nearly all of them
+        long slowFrames = bracelets[FAST_BRACELETS].getWrittenFrames();
+        for (int i = 0; i < FAST_BRACELETS; i++) {
+            assertTrue(bracelets[i].getWrittenFrames() > 2 * slowFrames);
+        }
+        assertTrue(pool.getScheduler(bracelets[FAST_BRACELETS]).getCoalescedFrames() > 0);
+    }
+
+    @Test
+    public void disconnectedBraceletIsSkipped() throws InterruptedException {
+        bracelets[0].dropConnection();
+        assertEquals(bracelets.length - 1, pool.getReadyCount());
+
+        byte[] frame = new byte[HuePalette.FRAME_SIZE];
+        frame[1] = 42;
+        pool.submit(frame, PipelineLatency.NO_ORIGIN, System.currentTimeMillis());
+        Thread.sleep(SLOW_LATENCY * 2);
+
+        assertEquals(0, bracelets[0].getWrittenFrames());
+        assertTrue(pool.getScheduler(bracelets[0]).isIdle());
+        assertTrue(pool.remove(bracelets[0]));
+        assertEquals(bracelets.length - 1, pool.size());
+    }
+
+    private boolean allIdle() {
+        for (SimulatedBracelet bracelet : bracelets) {
+            if (!pool.getScheduler(bracelet).isIdle()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
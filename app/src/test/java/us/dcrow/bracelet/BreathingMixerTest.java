@@ -0,0 +1,165 @@
+package us.dcrow.bracelet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds two sensors with different ranges through a BreathingMixer.
+ */
+public class BreathingMixerTest {
+
+    private static final long SAMPLE_INTERVAL = 20;
+
+    private final List<Integer> frameGroups = new ArrayList<Integer>();
+
+    private BreathingMixer mixer;
+    private SensorChannel low;
+    private SensorChannel high;
+    private long now;
+
+    @Before
+    public void createMixer() {
+        mixer = new BreathingMixer(64, 10, null, new BreathingMixer.FrameSink() {
+            @Override
+            public void onFrame(int group, byte[] frame, long originNanos) {
+                frameGroups.add(group);
+            }
+        });
+        mixer.setDedupThreshold(0);
+        low = mixer.addSensor(null);
+        high = mixer.addSensor(null);
+    }
+
+    /**
+     * Breathes on both sensors for a while, rendering in between, the low sensor only if lowBreathes
+     */
+    private void breathe(int samples, boolean lowBreathes) {
+        long nextTick = BreathingMixer.STOPPED;
+        for (int i = 0; i < samples; i++) {
+            double position = Math.sin(2 * Math.PI * i / 100.0);
+            if (lowBreathes) {
+                low.onNotification(new byte[] {(byte) (40 + 30 * position)}, now * 1000000);
+            }
+            high.onNotification(new byte[] {(byte) (200 + 40 * position)}, now * 1000000);
+
+            if (mixer.process(now)) {
+                nextTick = now;
+            }
+            if (nextTick != BreathingMixer.STOPPED && nextTick <= now) {
+                nextTick = mixer.renderTick(now);
+            }
+            now += SAMPLE_INTERVAL;
+        }
+    }
+
+    @Test
+    public void sensorsKeepTheirOwnCalibration() {
+        mixer.setCalibrationWindow(100);
+        breathe(300, true);
+
+        assertTrue(low.getPipeline().getMaxSensorValue() <= 70);
+        assertTrue(high.getPipeline().getMinSensorValue() >= 160);
+        // Both sensors sweep their whole range, in step
+        assertEquals(low.getHue(), high.getHue(), 20);
+    }
+
+    @Test
+    public void averageFeedsASingleGroup() {
+        breathe(200, true);
+
+        assertEquals(1, mixer.getGroupCount());
+        assertFalse(frameGroups.isEmpty());
+        for (int group : frameGroups) {
+            assertEquals(0, group);
+        }
+    }
+
+    @Test
+    public void routingGivesEachSensorItsGroup() {
+        mixer.setAggregator(new RoutingAggregator());
+        breathe(200, true);
+
+        assertEquals(2, mixer.getGroupCount());
+        assertTrue(frameGroups.contains(0));
+        assertTrue(frameGroups.contains(1));
+    }
+
+    @Test
+    public void leaderAloneDrivesTheFrames() {
+        mixer.setAggregator(new LeaderAggregator(0));
+        breathe(100, false);
+        assertTrue(frameGroups.isEmpty());
+
+        mixer.setAggregator(new LeaderAggregator(1));
+        breathe(100, false);
+        assertFalse(frameGroups.isEmpty());
+    }
+
+    @Test
+    public void removedSensorIsNotProcessed() {
+        assertTrue(mixer.removeSensor(low));
+        assertFalse(mixer.removeSensor(low));
+        breathe(100, true);
+
+        assertEquals(1, mixer.getSensorCount());
+        assertEquals(BreathingPipeline.NO_HUE, low.getHue());
+        assertNotEquals(BreathingPipeline.NO_HUE, high.getHue());
+    }
+
+    @Test
+    public void renderLoopStopsWhenSensorsGoQuiet() {
+        breathe(100, true);
+        assertTrue(mixer.isRunning());
+
+        now += BreathingRenderer.IDLE_TIMEOUT + 1;
+        assertEquals(BreathingMixer.STOPPED, mixer.renderTick(now));
+        assertFalse(mixer.isRunning());
+    }
+
+    @Test
+    public void filteredLatencyIncludesTheFiltering() {
+        final long[] clockNanos = {1000};
+        PipelineLatency latency = new PipelineLatency(new PipelineLatency.Clock() {
+            @Override
+            public long nanoTime() {
+                return clockNanos[0];
+            }
+        });
+        BreathingMixer measured = new BreathingMixer(64, 10, latency, new BreathingMixer.FrameSink() {
+            @Override
+            public void onFrame(int group, byte[] frame, long originNanos) {
+            }
+        });
+        SensorChannel sensor = measured.addSensor(null);
+        // Each sample takes a millisecond to filter
+        measured.setSignalFilter(0, new SignalFilter() {
+            @Override
+            public int filter(int sample) {
+                clockNanos[0] += 1000000;
+                return sample;
+            }
+
+            @Override
+            public void reset() {
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            sensor.onNotification(new byte[] {(byte) (100 + i)}, clockNanos[0]);
+        }
+
+        measured.process(now);
+
+        LatencyHistogram filtered = latency.getHistogram(PipelineLatency.STAGE_FILTERED);
+        assertEquals(3, filtered.getCount());
+        assertEquals(3000000, filtered.getValueAtPercentile(1));
+        assertEquals(3000000, filtered.getMax());
+    }
+}
@@ -0,0 +1,129 @@
+package us.dcrow.bracelet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the latest-wins scheduling, and that the writer and the listener run outside the scheduler lock.
+ */
+public class ColorWriteSchedulerTest {
+
+    private static final long RETRY_DELAY = 50;
+
+    private final List<byte[]> started = new ArrayList<byte[]>();
+    private final List<byte[]> written = new ArrayList<byte[]>();
+
+    private ColorWriteScheduler scheduler;
+
+    /**
+     * Result of the next writes, true to start them
+     */
+    private boolean accept = true;
+
+    /**
+     * Completion reported from inside the writer, null for none
+     */
+    private Boolean completeInWriter;
+
+    @Before
+    public void setUp() {
+        scheduler = new ColorWriteScheduler(new ColorWriteScheduler.FrameWriter() {
+            @Override
+            public boolean writeFrame(byte[] frame, long originNanos) {
+                assertFalse(Thread.holdsLock(scheduler));
+                started.add(frame.clone());
+                if (accept && completeInWriter != null) {
+                    scheduler.onWriteComplete(completeInWriter, 0);
+                }
+                return accept;
+            }
+        }, 1, RETRY_DELAY);
+        scheduler.setWriteListener(new ColorWriteScheduler.WriteListener() {
+            @Override
+            public void onFrameWritten(byte[] frame, long originNanos, long nowMillis) {
+                assertFalse(Thread.holdsLock(scheduler));
+                written.add(frame.clone());
+            }
+        });
+    }
+
+    private static byte[] frame(int value) {
+        return new byte[]{(byte) value};
+    }
+
+    @Test
+    public void keepsOnlyLatestFrameWhileWriting() {
+        scheduler.submit(frame(1), 0);
+        scheduler.submit(frame(2), 1);
+        scheduler.submit(frame(3), 2);
+        assertEquals(1, started.size());
+
+        scheduler.onWriteComplete(true, 10);
+
+        assertEquals(2, started.size());
+        assertArrayEquals(frame(3), started.get(1));
+        assertArrayEquals(frame(1), written.get(0));
+        assertEquals(1, scheduler.getCoalescedFrames());
+    }
+
+    @Test
+    public void neverOvertakesUnansweredWrite() {
+        scheduler.submit(frame(1), 0);
+        scheduler.submit(frame(2), 0);
+
+        assertEquals(ColorWriteScheduler.IDLE, scheduler.poll(60000));
+        assertEquals(1, started.size());
+
+        scheduler.onWriteComplete(false, 60001);
+
+        // The newer frame replaced the failed one
+        assertEquals(2, started.size());
+        assertArrayEquals(frame(2), started.get(1));
+        assertEquals(1, scheduler.getDroppedFrames());
+    }
+
+    @Test
+    public void retriesRefusedWriteAfterDelay() {
+        accept = false;
+        scheduler.submit(frame(1), 0);
+        assertEquals(1, scheduler.getRejectedWrites());
+        assertEquals(RETRY_DELAY - 10, scheduler.poll(10));
+        assertEquals(1, started.size());
+
+        accept = true;
+        scheduler.poll(RETRY_DELAY);
+
+        assertEquals(2, started.size());
+        assertArrayEquals(frame(1), started.get(1));
+    }
+
+    @Test
+    public void handlesCompletionFromInsideWriter() {
+        completeInWriter = true;
+        scheduler.submit(frame(1), 0);
+        scheduler.submit(frame(2), 0);
+
+        assertEquals(2, written.size());
+        assertTrue(scheduler.isIdle());
+    }
+
+    @Test
+    public void clearForgetsFrames() {
+        scheduler.submit(frame(1), 0);
+        scheduler.submit(frame(2), 0);
+        scheduler.clear();
+
+        assertTrue(scheduler.isIdle());
+        scheduler.onWriteComplete(true, 10);
+        assertEquals(0, written.size());
+        assertEquals(1, started.size());
+    }
+}
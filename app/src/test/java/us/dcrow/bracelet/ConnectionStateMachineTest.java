@@ -0,0 +1,141 @@
+package us.dcrow.bracelet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Races threads on a ConnectionStateMachine and checks what its observers see.
+ */
+public class ConnectionStateMachineTest {
+
+    private static final int THREADS = 4;
+    private static final int CYCLES = 2000;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private ExecutorService observerExecutor;
+    private ConnectionStateMachine machine;
+
+    /**
+     * Transitions seen by the observer, only touched on the observer executor
+     */
+    private final List<int[]> seen = new ArrayList<int[]>();
+
+    @Before
+    public void createMachine() {
+        observerExecutor = Executors.newSingleThreadExecutor();
+        machine = new ConnectionStateMachine("Bracelet", observerExecutor);
+        machine.addObserver(new ConnectionStateMachine.Observer() {
+            @Override
+            public void onStateChanged(ConnectionStateMachine machine, int from, int to) {
+                seen.add(new int[] {from, to});
+            }
+        });
+    }
+
+    @After
+    public void stopExecutor() {
+        observerExecutor.shutdownNow();
+    }
+
+    @Test
+    public void onlyOneThreadWinsATransition() throws InterruptedException {
+        final AtomicInteger scans = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (machine.transition(ConnectionStateMachine.STATE_IDLE, ConnectionStateMachine.STATE_SCANNING)) {
+                        scans.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, scans.get());
+        assertEquals(ConnectionStateMachine.STATE_SCANNING, machine.getState());
+    }
+
+    @Test
+    public void invalidTransitionsAreRefused() {
+        assertFalse(machine.moveTo(ConnectionStateMachine.STATE_READY));
+        assertFalse(machine.transition(ConnectionStateMachine.STATE_READY, ConnectionStateMachine.STATE_IDLE));
+        assertEquals(ConnectionStateMachine.STATE_IDLE, machine.getState());
+
+        try {
+            machine.transition(ConnectionStateMachine.STATE_IDLE, ConnectionStateMachine.STATE_READY);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        throw new AssertionError("IDLE to READY accepted");
+    }
+
+    @Test
+    public void observersSeeEveryTransitionInOrder() throws Exception {
+        // Each thread pushes the machine one step further whenever it can
+        final int[] next = {
+                ConnectionStateMachine.STATE_SCANNING, ConnectionStateMachine.STATE_CONNECTING,
+                ConnectionStateMachine.STATE_DISCOVERING, ConnectionStateMachine.STATE_READY,
+                ConnectionStateMachine.STATE_DISCONNECTING, ConnectionStateMachine.STATE_IDLE
+        };
+        final AtomicInteger transitions = new AtomicInteger();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    while (transitions.get() < CYCLES * next.length) {
+                        int state = machine.getState();
+                        if (machine.transition(state, next[state])) {
+                            transitions.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Every dispatch posted so far runs before this check
+        assertTrue(observerExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                assertEquals(transitions.get(), seen.size());
+                int state = ConnectionStateMachine.STATE_IDLE;
+                for (int[] transition : seen) {
+                    assertEquals(state, transition[0]);
+                    assertEquals(next[state], transition[1]);
+                    state = transition[1];
+                }
+                return true;
+            }
+        }).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+}
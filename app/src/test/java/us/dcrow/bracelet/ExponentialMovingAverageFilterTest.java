@@ -0,0 +1,63 @@
+package us.dcrow.bracelet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the seeding and the step response of the exponential moving average.
+ */
+public class ExponentialMovingAverageFilterTest {
+
+    @Test
+    public void seedsWithFirstSample() {
+        ExponentialMovingAverageFilter filter = new ExponentialMovingAverageFilter(0.1);
+
+        assertEquals(200, filter.filter(200));
+    }
+
+    @Test
+    public void followsStep() {
+        ExponentialMovingAverageFilter filter = new ExponentialMovingAverageFilter(0.5);
+        filter.filter(0);
+
+        assertEquals(50, filter.filter(100));
+        assertEquals(75, filter.filter(100));
+
+        int previous = 75;
+        for (int i = 0; i < 50; i++) {
+            int value = filter.filter(100);
+            assertTrue("never overshoots: " + value, value >= previous && value <= 100);
+            previous = value;
+        }
+        assertEquals(100, previous);
+    }
+
+    @Test
+    public void alphaOfOnePassesThrough() {
+        ExponentialMovingAverageFilter filter = new ExponentialMovingAverageFilter(1);
+        filter.filter(10);
+
+        assertEquals(-40, filter.filter(-40));
+    }
+
+    @Test
+    public void widthMapsToAlpha() {
+        assertEquals(2.0 / 16, ExponentialMovingAverageFilter.withWidth(15).getAlpha(), 1e-12);
+    }
+
+    @Test
+    public void resetForgetsValue() {
+        ExponentialMovingAverageFilter filter = new ExponentialMovingAverageFilter(0.1);
+        filter.filter(200);
+        filter.reset();
+
+        assertEquals(4, filter.filter(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroAlpha() {
+        new ExponentialMovingAverageFilter(0);
+    }
+}
@@ -0,0 +1,73 @@
+package us.dcrow.bracelet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the Hampel filter replaces outliers and leaves the other samples alone.
+ */
+public class HampelFilterTest {
+
+    private static final int WIDTH = 7;
+
+    /**
+     * Small ripple around 100, from 98 to 102
+     */
+    private static int ripple(int i) {
+        return 100 + i % 5 - 2;
+    }
+
+    /**
+     * Fills the window with ripple. Until then the deviation of the few samples seen is often 0,
+     * and any spread counts as an outlier.
+     */
+    private static HampelFilter primedFilter() {
+        HampelFilter filter = new HampelFilter(WIDTH);
+        for (int i = 0; i < WIDTH; i++) {
+            filter.filter(ripple(i));
+        }
+        return filter;
+    }
+
+    @Test
+    public void passesNormalSamples() {
+        HampelFilter filter = primedFilter();
+        long rejected = filter.getRejectedCount();
+        for (int i = WIDTH; i < 500; i++) {
+            assertEquals("sample " + i, ripple(i), filter.filter(ripple(i)));
+        }
+        assertEquals(rejected, filter.getRejectedCount());
+    }
+
+    @Test
+    public void replacesInjectedOutlier() {
+        HampelFilter filter = primedFilter();
+        long rejected = filter.getRejectedCount();
+        for (int i = WIDTH; i < 500; i++) {
+            if (i == 250) {
+                int replaced = filter.filter(1000);
+                assertTrue("outlier replaced by " + replaced, replaced >= 98 && replaced <= 102);
+            } else {
+                assertEquals("sample " + i, ripple(i), filter.filter(ripple(i)));
+            }
+        }
+        assertEquals(rejected + 1, filter.getRejectedCount());
+    }
+
+    @Test
+    public void resetForgetsSamples() {
+        HampelFilter filter = primedFilter();
+        filter.filter(1000);
+        filter.reset();
+
+        assertEquals(0, filter.getRejectedCount());
+        assertEquals(1000, filter.filter(1000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeThreshold() {
+        new HampelFilter(WIDTH, -1);
+    }
+}
@@ -0,0 +1,127 @@
+package us.dcrow.bracelet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the single sample and framed packets, and the packet statistics.
+ */
+public class MantraPacketDecoderTest {
+
+    private final MantraPacketDecoder decoder = new MantraPacketDecoder();
+
+    private static byte[] packet(int... bytes) {
+        byte[] packet = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            packet[i] = (byte) bytes[i];
+        }
+        return packet;
+    }
+
+    private void assertSamples(int... expected) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("sample " + i, expected[i], decoder.getSamples()[i]);
+        }
+    }
+
+    @Test
+    public void decodesSingleSample() {
+        assertEquals(1, decoder.decode(packet(200)));
+        assertSamples(200);
+        assertEquals(MantraPacketDecoder.NO_INTERVAL, decoder.getSampleInterval());
+    }
+
+    @Test
+    public void decodesFramedSamples() {
+        assertEquals(3, decoder.decode(packet(MantraPacketDecoder.FLAG_FRAMED, 1, 128, 255)));
+        assertSamples(1, 128, 255);
+        assertEquals(MantraPacketDecoder.NO_INTERVAL, decoder.getSampleInterval());
+    }
+
+    @Test
+    public void decodesSequenceAndInterval() {
+        int header = MantraPacketDecoder.FLAG_FRAMED | MantraPacketDecoder.FLAG_SEQUENCE
+                | MantraPacketDecoder.FLAG_TIMESTAMP;
+        assertEquals(2, decoder.decode(packet(header, 7, 0x2C, 0x01, 10, 20)));
+        assertSamples(10, 20);
+        assertEquals(300, decoder.getSampleInterval());
+    }
+
+    @Test
+    public void decodesIntervalWithoutSequence() {
+        int header = MantraPacketDecoder.FLAG_FRAMED | MantraPacketDecoder.FLAG_TIMESTAMP;
+        assertEquals(1, decoder.decode(packet(header, 20, 0, 42)));
+        assertSamples(42);
+        assertEquals(20, decoder.getSampleInterval());
+
+        // Not carried over to the next packet
+        decoder.decode(packet(42));
+        assertEquals(MantraPacketDecoder.NO_INTERVAL, decoder.getSampleInterval());
+    }
+
+    @Test
+    public void rejectsTruncatedHeader() {
+        int header = MantraPacketDecoder.FLAG_FRAMED | MantraPacketDecoder.FLAG_SEQUENCE
+                | MantraPacketDecoder.FLAG_TIMESTAMP;
+        assertEquals(0, decoder.decode(packet(header, 7, 0x2C)));
+        assertEquals(0, decoder.decode(packet(MantraPacketDecoder.FLAG_FRAMED | MantraPacketDecoder.FLAG_TIMESTAMP, 1)));
+        assertEquals(2, decoder.getMalformedPackets());
+    }
+
+    @Test
+    public void rejectsMalformedPackets() {
+        // Several bytes without the framed flag
+        assertEquals(0, decoder.decode(packet(0x01, 2, 3)));
+        assertEquals(0, decoder.decode(new byte[0]));
+        assertEquals(0, decoder.decode(null));
+        assertEquals(3, decoder.getMalformedPackets());
+    }
+
+    @Test
+    public void framedHeaderWithoutSamples() {
+        assertEquals(0, decoder.decode(packet(MantraPacketDecoder.FLAG_FRAMED | MantraPacketDecoder.FLAG_SEQUENCE, 1)));
+        assertEquals(0, decoder.getMalformedPackets());
+    }
+
+    @Test
+    public void countsSequenceGaps() {
+        int header = MantraPacketDecoder.FLAG_FRAMED | MantraPacketDecoder.FLAG_SEQUENCE;
+        decoder.decode(packet(header, 1, 10));
+        decoder.decode(packet(header, 2, 10));
+        decoder.decode(packet(header, 5, 10));
+        assertEquals(2, decoder.getLostPackets());
+
+        // The sequence number wraps around after 255
+        decoder.decode(packet(header, 254, 10));
+        decoder.decode(packet(header, 255, 10));
+        decoder.decode(packet(header, 0, 10));
+        assertEquals(2 + 248, decoder.getLostPackets());
+        decoder.decode(packet(header, 2, 10));
+        assertEquals(2 + 248 + 1, decoder.getLostPackets());
+    }
+
+    @Test
+    public void resetForgetsSequence() {
+        int header = MantraPacketDecoder.FLAG_FRAMED | MantraPacketDecoder.FLAG_SEQUENCE;
+        decoder.decode(packet(header, 1, 10));
+        decoder.reset();
+        decoder.decode(packet(header, 100, 10));
+
+        assertEquals(0, decoder.getLostPackets());
+    }
+
+    @Test
+    public void stampsBatchedSamplesAtTheirInterval() {
+        SensorChannel sensor = new SensorChannel(null, 16);
+        int header = MantraPacketDecoder.FLAG_FRAMED | MantraPacketDecoder.FLAG_TIMESTAMP;
+        sensor.onNotification(packet(header, 20, 0, 1, 2, 3), 1000000000L);
+
+        SampleRingBuffer samples = sensor.getSampleBuffer();
+        long[] expected = {960000000L, 980000000L, 1000000000L};
+        for (long timestamp : expected) {
+            assertEquals(timestamp, samples.peekTimestamp());
+            samples.poll();
+        }
+    }
+}
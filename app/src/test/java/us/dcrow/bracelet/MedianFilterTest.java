@@ -0,0 +1,90 @@
+package us.dcrow.bracelet;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the two heaps median against sorting the window on every sample.
+ */
+public class MedianFilterTest {
+
+    /**
+     * Median of the last samples up to index last, at most width of them, by sorting a copy
+     */
+    private static int referenceMedian(int[] samples, int last, int width) {
+        int first = Math.max(0, last - width + 1);
+        int[] window = Arrays.copyOfRange(samples, first, last + 1);
+        Arrays.sort(window);
+
+        int middle = window.length >> 1;
+        if ((window.length & 1) == 1) {
+            return window[middle];
+        }
+        return (int) (((long) window[middle - 1] + window[middle]) / 2);
+    }
+
+    private static void assertMatchesReference(int width, int[] samples) {
+        MedianFilter filter = new MedianFilter(width);
+        for (int i = 0; i < samples.length; i++) {
+            assertEquals("width " + width + " sample " + i, referenceMedian(samples, i, width),
+                    filter.filter(samples[i]));
+        }
+    }
+
+    @Test
+    public void matchesSortedWindow() {
+        Random random = new Random(42);
+        int[] samples = new int[3000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = random.nextInt(20001) - 10000;
+        }
+
+        assertMatchesReference(1, samples);
+        assertMatchesReference(2, samples);
+        assertMatchesReference(5, samples);
+        assertMatchesReference(15, samples);
+        assertMatchesReference(16, samples);
+    }
+
+    @Test
+    public void matchesSortedWindowWithDuplicates() {
+        Random random = new Random(7);
+        int[] samples = new int[3000];
+        for (int i = 0; i < samples.length; i++) {
+            // Mostly equal values, the heaps must still remove the right slot
+            samples[i] = random.nextInt(4);
+        }
+
+        assertMatchesReference(7, samples);
+        assertMatchesReference(8, samples);
+    }
+
+    @Test
+    public void rejectsSpike() {
+        MedianFilter filter = new MedianFilter(5);
+        for (int i = 0; i < 5; i++) {
+            filter.filter(100);
+        }
+
+        assertEquals(100, filter.filter(255));
+    }
+
+    @Test
+    public void resetForgetsSamples() {
+        MedianFilter filter = new MedianFilter(3);
+        filter.filter(100);
+        filter.filter(100);
+        filter.reset();
+
+        assertEquals(4, filter.filter(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyWidth() {
+        new MedianFilter(0);
+    }
+}
@@ -0,0 +1,110 @@
+package us.dcrow.bracelet;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the running-sum filter against the list based average formerly used in BraceletService.
+ * The old rangeSensorValue averaged the window before appending the new sample, and only once the window was
+ * full: its output was the filter output of the previous sample, one sample late. The filter drops that lag.
+ */
+public class MovingAverageFilterTest {
+
+    private static final int WIDTH = 15;
+
+    /**
+     * The moving average of rangeSensorValue, as it was (see also LegacyBreathingPath in the benchmarks)
+     */
+    private static class LegacyFilter {
+        private final int width;
+        private final List<Integer> filterWindow = new ArrayList<Integer>();
+        private int filteredSensorValue;
+
+        LegacyFilter(int width) {
+            this.width = width;
+        }
+
+        int filter(int sensorValue) {
+            if (filterWindow.size() >= width) {
+                int sum = 0;
+                for (int vals : filterWindow) {
+                    sum += vals;
+                }
+                filteredSensorValue = sum / filterWindow.size();
+                filterWindow.remove(0);
+            }
+            filterWindow.add(sensorValue);
+            return filteredSensorValue;
+        }
+    }
+
+    private static void assertMatchesReference(int width, int[] samples) {
+        MovingAverageFilter filter = new MovingAverageFilter(width);
+        LegacyFilter legacy = new LegacyFilter(width);
+        int previous = 0;
+
+        for (int i = 0; i < samples.length; i++) {
+            int expected = legacy.filter(samples[i]);
+            if (i < width) {
+                // Nothing came out of the old filter until its window was full
+                assertEquals("sample " + i, 0, expected);
+            } else {
+                assertEquals("sample " + i, expected, previous);
+            }
+            previous = filter.filter(samples[i]);
+        }
+    }
+
+    @Test
+    public void matchesReferenceForSensorRange() {
+        Random random = new Random(42);
+        int[] samples = new int[5000];
+        for (int i = 0; i < samples.length; i++) {
+            // Mantra reports a uint8
+            samples[i] = random.nextInt(256);
+        }
+
+        assertMatchesReference(WIDTH, samples);
+    }
+
+    @Test
+    public void matchesReferenceForSignedSamples() {
+        Random random = new Random(7);
+        int[] samples = new int[5000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = random.nextInt(20001) - 10000;
+        }
+
+        assertMatchesReference(WIDTH, samples);
+        assertMatchesReference(1, samples);
+        assertMatchesReference(400, samples);
+    }
+
+    @Test
+    public void emitsFromFirstSample() {
+        MovingAverageFilter filter = new MovingAverageFilter(WIDTH);
+
+        assertEquals(10, filter.filter(10));
+        assertEquals(15, filter.filter(20));
+    }
+
+    @Test
+    public void resetForgetsSamples() {
+        MovingAverageFilter filter = new MovingAverageFilter(3);
+        filter.filter(100);
+        filter.filter(100);
+        filter.reset();
+
+        assertEquals(4, filter.filter(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyWidth() {
+        new MovingAverageFilter(0);
+    }
+}
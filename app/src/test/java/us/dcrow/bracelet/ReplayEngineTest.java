@@ -0,0 +1,156 @@
+package us.dcrow.bracelet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records a synthetic breathing session and replays it through the pipeline.
+ */
+public class ReplayEngineTest {
+
+    /**
+     * 10 seconds of a 4 second breathing cycle, sampled every 20ms, two samples per notification.
+     * Fits in the recorder's ring, nothing is dropped.
+     */
+    private static final int SAMPLE_COUNT = 500;
+    private static final long SAMPLE_INTERVAL_NANOS = 20000000L;
+    private static final long START_NANOS = 123456789L;
+
+    /**
+     * What the breathing path sends for the session above, default settings. Calibration holds the color
+     * on red for the first 400 samples, the keep alive repeats it every second, then the hue follows the
+     * breathing. A change in any stage of the path shows up here: check the new frames are right before
+     * updating these.
+     */
+    private static final int GOLDEN_FRAME_COUNT = 65;
+    private static final long GOLDEN_CHECKSUM = 0x8a76fde1L;
+
+    private File session;
+
+    @Before
+    public void recordSession() throws IOException {
+        session = File.createTempFile("session", ".brs");
+        SessionRecorder recorder = new SessionRecorder(session);
+        recorder.start(START_NANOS);
+
+        int[] batch = new int[2];
+        for (int i = 0; i < SAMPLE_COUNT; i += 2) {
+            batch[0] = sample(i);
+            batch[1] = sample(i + 1);
+            recorder.recordSamples(batch, 2, START_NANOS + (i + 1) * SAMPLE_INTERVAL_NANOS);
+        }
+        recorder.stop();
+        assertEquals(0, recorder.getDroppedRecords());
+    }
+
+    @After
+    public void deleteSession() {
+        session.delete();
+    }
+
+    private static int sample(int i) {
+        return 128 + (int) Math.round(100 * Math.sin(2 * Math.PI * i / 200.0));
+    }
+
+    @Test
+    public void readsBackRecordedSamples() throws IOException {
+        SessionReader reader = new SessionReader(session);
+        try {
+            assertEquals(START_NANOS, reader.getStartNanos());
+            for (int i = 0; i < SAMPLE_COUNT; i++) {
+                assertEquals(SessionRecorder.TAG_SAMPLE, reader.next());
+                assertEquals(sample(i), reader.getSample());
+                assertEquals((i | 1) * SAMPLE_INTERVAL_NANOS / 1000, reader.getTimeMicros());
+            }
+            assertEquals(SessionRecorder.TAG_END, reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void replayIsDeterministic() throws IOException {
+        List<byte[]> first = replay();
+        List<byte[]> second = replay();
+
+        assertTrue(first.size() > 0);
+        assertEquals(first.size(), second.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertArrayEquals("frame " + i, first.get(i), second.get(i));
+        }
+    }
+
+    @Test
+    public void replayMatchesGoldenFrames() throws IOException {
+        final List<Long> times = new ArrayList<Long>();
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        final CRC32 checksum = new CRC32();
+        new ReplayEngine().replay(session, new ReplayEngine.Listener() {
+            @Override
+            public void onFrame(long timeMillis, byte[] frame) {
+                times.add(timeMillis);
+                frames.add(Arrays.copyOf(frame, frame.length));
+                for (int shift = 0; shift < 64; shift += 8) {
+                    checksum.update((int) (timeMillis >>> shift));
+                }
+                checksum.update(frame);
+            }
+        });
+
+        assertEquals(GOLDEN_FRAME_COUNT, frames.size());
+        assertFrame(20, new byte[] {(byte) 255, 0, 0, 10}, times.get(0), frames.get(0));
+        assertFrame(1043, new byte[] {(byte) 255, 0, 0, 10}, times.get(1), frames.get(1));
+        assertFrame(8402, new byte[] {0, 4, (byte) 255, 10}, times.get(20), frames.get(20));
+        assertFrame(9062, new byte[] {(byte) 255, 0, 25, 10}, times.get(40), frames.get(40));
+        assertFrame(9887, new byte[] {77, 0, (byte) 255, 10}, times.get(60), frames.get(60));
+        assertEquals(GOLDEN_CHECKSUM, checksum.getValue());
+    }
+
+    @Test
+    public void replayRespectsFrameRate() throws IOException {
+        final List<Long> times = new ArrayList<Long>();
+        ReplayEngine engine = new ReplayEngine();
+        engine.setFrameRate(25);
+        engine.setDedupThreshold(0);
+        engine.replay(session, new ReplayEngine.Listener() {
+            @Override
+            public void onFrame(long timeMillis, byte[] frame) {
+                times.add(timeMillis);
+            }
+        });
+
+        for (int i = 1; i < times.size(); i++) {
+            assertTrue("frame " + i, times.get(i) - times.get(i - 1) >= 40);
+        }
+        // The sensor stops at 10 seconds, the render loop a second later
+        assertTrue(times.get(times.size() - 1) <= SAMPLE_COUNT * SAMPLE_INTERVAL_NANOS / 1000000 + BreathingRenderer.IDLE_TIMEOUT);
+    }
+
+    private static void assertFrame(long expectedTime, byte[] expectedFrame, long time, byte[] frame) {
+        assertEquals(expectedTime, time);
+        assertArrayEquals(expectedFrame, frame);
+    }
+
+    private List<byte[]> replay() throws IOException {
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        new ReplayEngine().replay(session, new ReplayEngine.Listener() {
+            @Override
+            public void onFrame(long timeMillis, byte[] frame) {
+                frames.add(Arrays.copyOf(frame, frame.length));
+            }
+        });
+        return frames;
+    }
+}
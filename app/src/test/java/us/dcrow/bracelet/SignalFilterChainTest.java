@@ -0,0 +1,67 @@
+package us.dcrow.bracelet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the chain runs its stages in order and resets all of them.
+ */
+public class SignalFilterChainTest {
+
+    private static SignalFilter doubling() {
+        return new SignalFilter() {
+            @Override
+            public int filter(int sample) {
+                return sample * 2;
+            }
+
+            @Override
+            public void reset() {
+            }
+        };
+    }
+
+    private static SignalFilter addingThree() {
+        return new SignalFilter() {
+            @Override
+            public int filter(int sample) {
+                return sample + 3;
+            }
+
+            @Override
+            public void reset() {
+            }
+        };
+    }
+
+    @Test
+    public void appliesStagesInOrder() {
+        assertEquals(5, new SignalFilterChain(doubling(), addingThree()).filter(1));
+        assertEquals(8, new SignalFilterChain(addingThree(), doubling()).filter(1));
+    }
+
+    @Test
+    public void emptyChainPassesThrough() {
+        assertEquals(42, new SignalFilterChain().filter(42));
+    }
+
+    @Test
+    public void keepsItsOwnStages() {
+        SignalFilter[] stages = {doubling(), addingThree()};
+        SignalFilterChain chain = new SignalFilterChain(stages);
+        stages[0] = addingThree();
+
+        assertEquals(5, chain.filter(1));
+    }
+
+    @Test
+    public void resetsEveryStage() {
+        SignalFilterChain chain = new SignalFilterChain(new MovingAverageFilter(4), new MedianFilter(3));
+        chain.filter(100);
+        chain.filter(100);
+        chain.reset();
+
+        assertEquals(4, chain.filter(4));
+    }
+}
@@ -0,0 +1,144 @@
+package us.dcrow.bracelet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the sample and write paths against the simulated peripherals, with a fast Mantra and a lossy Bracelet.
+ */
+public class SimulatedPeripheralTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private ScheduledExecutorService executor;
+
+    @Before
+    public void startExecutor() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void decodesEveryFramedNotification() throws InterruptedException {
+        final int notifications = 100;
+        final int samplesPerNotification = 4;
+
+        SimulatedMantra mantra = new SimulatedMantra(executor, "Mantra", "00:00:00:00:00:02");
+        mantra.setNotificationRate(500);
+        mantra.setJitter(1);
+        mantra.setSamplesPerNotification(samplesPerNotification);
+        mantra.setConnectDelay(0);
+
+        final MantraPacketDecoder decoder = new MantraPacketDecoder();
+        final AtomicInteger samples = new AtomicInteger();
+        final CountDownLatch received = new CountDownLatch(notifications);
+        mantra.setListener(new LinkAdapter() {
+            @Override
+            public void onNotification(PeripheralLink link, byte[] value) {
+                samples.addAndGet(decoder.decode(value));
+                received.countDown();
+            }
+        });
+        mantra.connect(false);
+
+        assertTrue(received.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        mantra.close();
+
+        assertEquals(0, decoder.getMalformedPackets());
+        assertEquals(0, decoder.getLostPackets());
+        assertTrue(samples.get() >= notifications * samplesPerNotification);
+    }
+
+    @Test
+    public void lastFrameReachesLossyBracelet() throws InterruptedException {
+        final SimulatedBracelet bracelet = new SimulatedBracelet(executor, "Bracelet", "00:00:00:00:00:01");
+        bracelet.setSeed(42);
+        bracelet.setWriteLatency(2);
+        bracelet.setJitter(1);
+        bracelet.setLossRate(0.2);
+        bracelet.setBusyRate(0.2);
+        bracelet.setConnectDelay(0);
+
+        final ColorWriteScheduler scheduler = new ColorWriteScheduler(new ColorWriteScheduler.FrameWriter() {
+            @Override
+            public boolean writeFrame(byte[] frame, long originNanos) {
+                return bracelet.write(frame);
+            }
+        }, HuePalette.FRAME_SIZE, 10);
+
+        final CountDownLatch ready = new CountDownLatch(1);
+        bracelet.setListener(new LinkAdapter() {
+            @Override
+            public void onReady(PeripheralLink link) {
+                ready.countDown();
+            }
+
+            @Override
+            public void onWriteComplete(PeripheralLink link, int status) {
+                scheduler.onWriteComplete(status == PeripheralLink.STATUS_SUCCESS, System.currentTimeMillis());
+            }
+        });
+        bracelet.connect(false);
+        assertTrue(ready.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        byte[] frame = new byte[HuePalette.FRAME_SIZE];
+        for (int i = 0; i < 200; i++) {
+            frame[0] = (byte) i;
+            frame[3] = 10;
+            scheduler.submit(frame, System.currentTimeMillis());
+            Thread.sleep(1);
+        }
+
+        // The scheduler retries failed and refused writes until the last frame made it
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!scheduler.isIdle() && System.currentTimeMillis() < deadline) {
+            scheduler.poll(System.currentTimeMillis());
+            Thread.sleep(1);
+        }
+        assertTrue(scheduler.isIdle());
+
+        byte[] shown = new byte[HuePalette.FRAME_SIZE];
+        bracelet.getShownFrame(shown);
+        assertArrayEquals(frame, shown);
+        assertTrue(bracelet.getLostWrites() > 0);
+        assertTrue(bracelet.getRejectedWrites() > 0);
+        assertTrue(scheduler.getCoalescedFrames() > 0);
+    }
+
+    private static class LinkAdapter implements PeripheralLink.Listener {
+        @Override
+        public void onConnected(PeripheralLink link) {
+        }
+
+        @Override
+        public void onReady(PeripheralLink link) {
+        }
+
+        @Override
+        public void onDisconnected(PeripheralLink link) {
+        }
+
+        @Override
+        public void onNotification(PeripheralLink link, byte[] value) {
+        }
+
+        @Override
+        public void onWriteComplete(PeripheralLink link, int status) {
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package us.dcrow.bracelet.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import us.dcrow.bracelet.BreathingPipeline;
+import us.dcrow.bracelet.SensorCalibrator;
+
+/**
+ * Sliding min/max over the calibration window: boxed list with Collections.max/min against SensorCalibrator.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CalibrationBenchmark {
+
+    private LegacyBreathingPath legacy;
+    private SensorCalibrator calibrator;
+
+    @Setup
+    public void setUp() {
+        legacy = new LegacyBreathingPath();
+        calibrator = new SensorCalibrator(BreathingPipeline.CALIBRATION_WINDOW);
+    }
+
+    @Benchmark
+    public int legacyBoxedWindow(SampleInput input) {
+        legacy.calibrate(input.next());
+        return legacy.getMaxSensorValue() - legacy.getMinSensorValue();
+    }
+
+    @Benchmark
+    public int sensorCalibrator(SampleInput input) {
+        calibrator.add(input.next());
+        return calibrator.getMax() - calibrator.getMin();
+    }
+}
@@ -0,0 +1,95 @@
+package us.dcrow.bracelet.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import us.dcrow.bracelet.BiquadLowPassFilter;
+import us.dcrow.bracelet.BreathingPipeline;
+import us.dcrow.bracelet.ExponentialMovingAverageFilter;
+import us.dcrow.bracelet.HampelFilter;
+import us.dcrow.bracelet.MedianFilter;
+import us.dcrow.bracelet.MovingAverageFilter;
+import us.dcrow.bracelet.SignalFilter;
+import us.dcrow.bracelet.SignalFilterChain;
+
+/**
+ * Smoothing of one sample: the boxed moving average against the SignalFilter implementations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FilterBenchmark {
+
+    /**
+     * Sensor rate of the synthetic input, for the low-pass cutoff
+     */
+    private static final float SAMPLE_RATE = 50;
+
+    private LegacyBreathingPath legacy;
+    private SignalFilter movingAverage;
+    private SignalFilter exponential;
+    private SignalFilter median;
+    private SignalFilter hampel;
+    private SignalFilter biquad;
+    private SignalFilter hampelBiquad;
+
+    @Setup
+    public void setUp() {
+        legacy = new LegacyBreathingPath();
+        movingAverage = new MovingAverageFilter(BreathingPipeline.FILTER_WIDTH);
+        exponential = ExponentialMovingAverageFilter.withWidth(BreathingPipeline.FILTER_WIDTH);
+        median = new MedianFilter(BreathingPipeline.FILTER_WIDTH);
+        hampel = new HampelFilter(7);
+        biquad = new BiquadLowPassFilter(2, SAMPLE_RATE, BiquadLowPassFilter.BUTTERWORTH_Q);
+        hampelBiquad = new SignalFilterChain(new HampelFilter(7),
+                new BiquadLowPassFilter(2, SAMPLE_RATE, BiquadLowPassFilter.BUTTERWORTH_Q));
+    }
+
+    @Benchmark
+    public int legacyBoxedAverage(SampleInput input) {
+        return legacy.filter(input.next());
+    }
+
+    @Benchmark
+    public int movingAverage(SampleInput input) {
+        return movingAverage.filter(input.next());
+    }
+
+    @Benchmark
+    public int exponentialMovingAverage(SampleInput input) {
+        return exponential.filter(input.next());
+    }
+
+    @Benchmark
+    public int median(SampleInput input) {
+        return median.filter(input.next());
+    }
+
+    @Benchmark
+    public int hampel(SampleInput input) {
+        return hampel.filter(input.next());
+    }
+
+    @Benchmark
+    public int biquadLowPass(SampleInput input) {
+        return biquad.filter(input.next());
+    }
+
+    @Benchmark
+    public int hampelThenBiquad(SampleInput input) {
+        return hampelBiquad.filter(input.next());
+    }
+}
@@ -0,0 +1,50 @@
+package us.dcrow.bracelet.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import us.dcrow.bracelet.HuePalette;
+
+/**
+ * Packing a color and a brightness into the 4 byte Bracelet frame: a new array per frame against a reused one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameEncodingBenchmark {
+
+    private static final int BRIGHTNESS = 10;
+
+    private HuePalette palette;
+    private byte[] frame;
+
+    @Setup
+    public void setUp() {
+        palette = HuePalette.rainbow();
+        frame = new byte[HuePalette.FRAME_SIZE];
+    }
+
+    @Benchmark
+    public byte[] legacyNewFrame(SampleInput input) {
+        return LegacyBreathingPath.encodeFrame(palette.color(input.next() % 361), BRIGHTNESS);
+    }
+
+    @Benchmark
+    public byte[] reusedFrame(SampleInput input) {
+        palette.writeFrame(input.next() % 361, BRIGHTNESS, frame);
+        return frame;
+    }
+}
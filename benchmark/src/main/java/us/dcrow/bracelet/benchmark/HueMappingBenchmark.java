@@ -0,0 +1,60 @@
+package us.dcrow.bracelet.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import us.dcrow.bracelet.BreathingPipeline;
+import us.dcrow.bracelet.HuePalette;
+
+/**
+ * Hue to color conversion, and the whole ranging, filtering and mapping of a sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HueMappingBenchmark {
+
+    private LegacyBreathingPath legacy;
+    private BreathingPipeline pipeline;
+    private HuePalette palette;
+
+    @Setup
+    public void setUp() {
+        legacy = new LegacyBreathingPath();
+        pipeline = new BreathingPipeline();
+        palette = HuePalette.rainbow();
+    }
+
+    @Benchmark
+    public int legacyHsvToColor(SampleInput input) {
+        return LegacyBreathingPath.hsvToColor(new float[] { input.next() % 361, 1.0f, 1.0f });
+    }
+
+    @Benchmark
+    public int paletteLookup(SampleInput input) {
+        return palette.color(input.next() % 361);
+    }
+
+    @Benchmark
+    public int legacyMapSensorValueToColor(SampleInput input) {
+        return legacy.mapSensorValueToColor(input.next());
+    }
+
+    @Benchmark
+    public int pipelineMapSensorValueToColor(SampleInput input) {
+        return pipeline.mapSensorValueToColor(input.next());
+    }
+}
@@ -0,0 +1,161 @@
+package us.dcrow.bracelet.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The per-sample path as BraceletService first implemented it, kept as the benchmark baseline:
+ * boxed sample windows re-scanned on every sample, a float[] allocated for every HSV conversion,
+ * a new frame array for every write and the log messages built whether or not anybody reads them.
+ * Color.HSVToColor and Color.red/green/blue are replaced by their plain Java equivalents.
+ */
+public class LegacyBreathingPath {
+
+    private static final int CALIBRATION_WINDOW = 400;
+    private static final int FILTER_WIDTH = 15;
+
+    private final List<Integer> sampleWindow = new ArrayList<Integer>();
+    private final List<Integer> filterWindow = new ArrayList<Integer>();
+
+    private int maxSensorValue;
+    private int minSensorValue;
+    private int filteredSensorValue;
+
+    private int brightness = 10;
+
+    /**
+     * Last log message, kept so building it is not optimized away
+     */
+    public String lastLogMessage;
+
+    public int getMaxSensorValue() {
+        return maxSensorValue;
+    }
+
+    public int getMinSensorValue() {
+        return minSensorValue;
+    }
+
+    public int getFilteredSensorValue() {
+        return filteredSensorValue;
+    }
+
+    /**
+     * Calibration window update alone
+     */
+    public void calibrate(int sensorValue) {
+        if (sampleWindow.size() >= CALIBRATION_WINDOW) {
+            sampleWindow.remove(0);
+        }
+        sampleWindow.add(sensorValue);
+
+        if (sampleWindow.size() == CALIBRATION_WINDOW) {
+            maxSensorValue = Collections.max(sampleWindow);
+            minSensorValue = Collections.min(sampleWindow);
+        }
+    }
+
+    /**
+     * Moving average alone
+     */
+    public int filter(int sensorValue) {
+        if (filterWindow.size() >= FILTER_WIDTH) {
+            int sum = 0;
+            for (int vals : filterWindow) {
+                sum += vals;
+            }
+            filteredSensorValue = sum / filterWindow.size();
+            filterWindow.remove(0);
+        }
+        filterWindow.add(sensorValue);
+        return filteredSensorValue;
+    }
+
+    public void rangeSensorValue(int sensorValue) {
+        calibrate(sensorValue);
+        filter(sensorValue);
+        lastLogMessage = "Ranged max: " + maxSensorValue + " Ranged min: " + minSensorValue;
+    }
+
+    public int mapSensorValueToColor(int value) {
+        rangeSensorValue(value);
+
+        int inputRange = maxSensorValue - minSensorValue;
+        int outputRange = 360;
+        int hueValue = 0;
+
+        if (value == 0) {
+            lastLogMessage = "Attempted to map null sensor value to color.";
+            return 0;
+        }
+
+        if (inputRange != 0) hueValue = (filteredSensorValue - minSensorValue) * outputRange / inputRange + 0;
+
+        lastLogMessage = "hue value:" + hueValue;
+        lastLogMessage = "hue value float:" + (float) hueValue;
+
+        return hsvToColor(new float[] { (float) hueValue, 1.0f, 1.0f });
+    }
+
+    /**
+     * Sensor sample to frame, as sendBreathingColor did before the write
+     */
+    public byte[] sendBreathingColor(int value) {
+        int colorToSend = mapSensorValueToColor(value);
+        byte[] data = encodeFrame(colorToSend, brightness);
+        lastLogMessage = "Sending Breathing Color R:" + red(colorToSend) + " G:" + green(colorToSend) + " B:" + blue(colorToSend);
+        return data;
+    }
+
+    public static byte[] encodeFrame(int color, int brightness) {
+        byte[] data = new byte[4];
+        data[0] = (byte) red(color);
+        data[1] = (byte) green(color);
+        data[2] = (byte) blue(color);
+        data[3] = (byte) brightness;
+        return data;
+    }
+
+    /**
+     * Color.HSVToColor, i.e. Skia's SkHSVToColor, with an opaque alpha
+     */
+    public static int hsvToColor(float[] hsv) {
+        float h = hsv[0];
+        float s = Math.max(0, Math.min(1, hsv[1]));
+        int v = Math.round(Math.max(0, Math.min(1, hsv[2])) * 255);
+
+        if (s <= 0) {
+            return 0xFF000000 | v << 16 | v << 8 | v;
+        }
+        float hx = (h < 0 || h >= 360) ? 0 : h / 60;
+        int sector = (int) Math.floor(hx);
+        float f = hx - sector;
+        int p = Math.round((1 - s) * v);
+        int q = Math.round((1 - s * f) * v);
+        int t = Math.round((1 - s * (1 - f)) * v);
+
+        int r, g, b;
+        switch (sector) {
+            case 0: r = v; g = t; b = p; break;
+            case 1: r = q; g = v; b = p; break;
+            case 2: r = p; g = v; b = t; break;
+            case 3: r = p; g = q; b = v; break;
+            case 4: r = t; g = p; b = v; break;
+            default: r = v; g = p; b = q; break;
+        }
+        return 0xFF000000 | r << 16 | g << 8 | b;
+    }
+
+    private static int red(int color) {
+        return (color >> 16) & 0xFF;
+    }
+
+    private static int green(int color) {
+        return (color >> 8) & 0xFF;
+    }
+
+    private static int blue(int color) {
+        return color & 0xFF;
+    }
+}
@@ -0,0 +1,35 @@
+package us.dcrow.bracelet.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import us.dcrow.bracelet.ReplayEngine;
+
+/**
+ * Command line front end of ReplayEngine: Replay session.brs [--realtime] prints the frames as CSV
+ * on the standard output, and their count on the standard error.
+ */
+public class Replay {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: Replay <session file> [--realtime]");
+            System.exit(1);
+        }
+
+        ReplayEngine engine = new ReplayEngine();
+        engine.setRealTime(args.length > 1 && args[1].equals("--realtime"));
+
+        final PrintStream out = System.out;
+        out.println("time_ms,red,green,blue,brightness");
+        long frames = engine.replay(new File(args[0]), new ReplayEngine.Listener() {
+            @Override
+            public void onFrame(long timeMillis, byte[] frame) {
+                out.println(timeMillis + "," + (frame[0] & 0xFF) + "," + (frame[1] & 0xFF) + ","
+                        + (frame[2] & 0xFF) + "," + (frame[3] & 0xFF));
+            }
+        });
+        System.err.println(frames + " frames");
+    }
+}
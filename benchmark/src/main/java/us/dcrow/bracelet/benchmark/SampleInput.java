@@ -0,0 +1,80 @@
+package us.dcrow.bracelet.benchmark;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import us.dcrow.bracelet.SessionReader;
+import us.dcrow.bracelet.SessionRecorder;
+
+/**
+ * Breathing sensor samples fed to the benchmarks, one per call to next.
+ * "synthetic" (default) is a noisy 4 second breathing cycle sampled at 50Hz, anything else is the path
+ * of a session recorded by SessionRecorder, e.g. -p input=/sdcard/session-1234.brs
+ */
+@State(Scope.Thread)
+public class SampleInput {
+
+    private static final int SYNTHETIC_SAMPLE_COUNT = 10000;
+
+    @Param("synthetic")
+    public String input;
+
+    private int[] samples;
+    private int position;
+
+    @Setup
+    public void load() throws IOException {
+        samples = input.equals("synthetic") ? synthetic() : recorded(new File(input));
+        position = 0;
+    }
+
+    public int next() {
+        int sample = samples[position];
+        if (++position == samples.length) {
+            position = 0;
+        }
+        return sample;
+    }
+
+    private static int[] synthetic() {
+        Random random = new Random(42);
+        int[] samples = new int[SYNTHETIC_SAMPLE_COUNT];
+        for (int i = 0; i < samples.length; i++) {
+            double breath = Math.sin(2 * Math.PI * i / 200.0);
+            int value = 128 + (int) Math.round(90 * breath + 8 * random.nextGaussian());
+            // Never 0, which the pipeline treats as a null sample
+            samples[i] = Math.max(1, Math.min(255, value));
+        }
+        return samples;
+    }
+
+    private static int[] recorded(File file) throws IOException {
+        int[] samples = new int[1024];
+        int count = 0;
+        SessionReader reader = new SessionReader(file);
+        try {
+            int tag;
+            while ((tag = reader.next()) != SessionRecorder.TAG_END) {
+                if (tag == SessionRecorder.TAG_SAMPLE) {
+                    if (count == samples.length) {
+                        samples = Arrays.copyOf(samples, count * 2);
+                    }
+                    samples[count++] = reader.getSample();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (count == 0) {
+            throw new IOException("No samples in " + file);
+        }
+        return Arrays.copyOf(samples, count);
+    }
+}
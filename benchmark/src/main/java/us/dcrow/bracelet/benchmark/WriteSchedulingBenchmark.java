@@ -0,0 +1,82 @@
+package us.dcrow.bracelet.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import us.dcrow.bracelet.BreathingPipeline;
+import us.dcrow.bracelet.ColorWriteScheduler;
+import us.dcrow.bracelet.FrameDeduplicator;
+import us.dcrow.bracelet.HuePalette;
+
+/**
+ * Bookkeeping between a computed frame and the characteristic write, with a writer that does nothing
+ * and acknowledges every other write. The legacy path wrote every frame straight away.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteSchedulingBenchmark {
+
+    private static final int BRIGHTNESS = 10;
+
+    private LegacyBreathingPath legacy;
+    private BreathingPipeline pipeline;
+    private FrameDeduplicator deduplicator;
+    private ColorWriteScheduler scheduler;
+    private byte[] frame;
+    private long now;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        this.blackhole = blackhole;
+        legacy = new LegacyBreathingPath();
+        pipeline = new BreathingPipeline();
+        deduplicator = new FrameDeduplicator(FrameDeduplicator.DEFAULT_THRESHOLD, FrameDeduplicator.DEFAULT_KEEP_ALIVE);
+        frame = new byte[HuePalette.FRAME_SIZE];
+        scheduler = new ColorWriteScheduler(new ColorWriteScheduler.FrameWriter() {
+            @Override
+            public boolean writeFrame(byte[] frame, long originNanos) {
+                blackhole.consume(frame);
+                return true;
+            }
+        }, HuePalette.FRAME_SIZE, 50);
+        scheduler.setWriteListener(new ColorWriteScheduler.WriteListener() {
+            @Override
+            public void onFrameWritten(byte[] frame, long originNanos, long nowMillis) {
+                deduplicator.onFrameAcknowledged(frame, nowMillis);
+            }
+        });
+    }
+
+    @Benchmark
+    public void legacyWriteEveryFrame(SampleInput input) {
+        blackhole.consume(legacy.sendBreathingColor(input.next()));
+    }
+
+    @Benchmark
+    public void dedupAndSchedule(SampleInput input) {
+        now += 20;
+        HuePalette.writeColorFrame(pipeline.mapSensorValueToColor(input.next()), BRIGHTNESS, frame);
+        if (deduplicator.shouldSend(frame, now)) {
+            scheduler.submit(frame, now);
+        }
+        if ((now & 32) != 0) {
+            scheduler.onWriteComplete(true, now);
+        }
+    }
+}